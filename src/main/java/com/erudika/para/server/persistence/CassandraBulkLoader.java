@@ -0,0 +1,257 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.erudika.para.core.utils.Config;
+import com.erudika.para.core.utils.ParaObjectUtils;
+import com.erudika.para.core.utils.Utils;
+import com.fasterxml.jackson.databind.ObjectReader;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bulk loader for importing Para objects into Cassandra from NDJSON files (one JSON object per line),
+ * optionally compressed with gzip. The file is streamed, lines are parsed in parallel and written with
+ * a bounded number of concurrent asynchronous inserts, so memory usage stays constant regardless of file size.
+ * Progress is saved to a checkpoint file periodically and an interrupted import resumes from the last checkpoint.
+ * Objects which couldn't be imported are written to a file next to the imported one, with the ".failed" extension,
+ * which is itself an NDJSON file that can be imported again.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public final class CassandraBulkLoader {
+
+	private static final Logger logger = LoggerFactory.getLogger(CassandraBulkLoader.class);
+	private static final ObjectReader JSON_MAP_READER = ParaObjectUtils.getJsonReader(Map.class);
+	private static final int CONCURRENCY = CassandraUtils.getConfigInt("cassandra.bulk_concurrency", 256);
+	private static final int PARSER_THREADS = CassandraUtils.getConfigInt("cassandra.bulk_parser_threads",
+			Runtime.getRuntime().availableProcessors());
+	private static final int CHECKPOINT_INTERVAL = CassandraUtils.getConfigInt("cassandra.bulk_checkpoint_interval", 100000);
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	private CassandraBulkLoader() { }
+
+	/**
+	 * Imports all objects from an NDJSON file into an app. The checkpoint is saved next to the file,
+	 * in a file with the same name and the ".checkpoint" extension.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param file an NDJSON file, gzipped if the file name ends with ".gz"
+	 * @return the number of imported objects
+	 * @throws IOException if the file can't be read
+	 */
+	public static long importFile(String appid, Path file) throws IOException {
+		return importFile(appid, file, file == null ? null : Paths.get(file.toString() + ".checkpoint"));
+	}
+
+	/**
+	 * Imports all objects from an NDJSON file into an app. Objects without an id get a new one.
+	 * Objects are stored as they are - existing objects with the same ids are overwritten.
+	 * Failed objects are written, with their ids, to a file with the same name and the ".failed" extension.
+	 * Failures to update the counts of an imported object are only counted, the object itself was imported.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param file an NDJSON file, gzipped if the file name ends with ".gz"
+	 * @param checkpoint a file where progress is saved, deleted when the import completes
+	 * @return the number of imported objects
+	 * @throws IOException if the file can't be read
+	 */
+	public static long importFile(String appid, Path file, Path checkpoint) throws IOException {
+		if (StringUtils.isBlank(appid) || file == null || checkpoint == null || !Files.isReadable(file)) {
+			return 0;
+		}
+		CassandraDAO dao = new CassandraDAO();
+		long skip = readCheckpoint(checkpoint);
+		Path failed = Paths.get(file.toString() + ".failed");
+		if (skip == 0) {
+			Files.deleteIfExists(failed);
+		}
+		Progress progress = new Progress(failed);
+		ExecutorService parsers = Executors.newFixedThreadPool(Math.max(1, PARSER_THREADS));
+		logger.info("Importing objects from {} into app '{}', starting at line {}...", file, appid, skip + 1);
+		try (BufferedReader reader = newReader(file)) {
+			long line = 0;
+			String json;
+			while ((json = reader.readLine()) != null) {
+				if (++line <= skip || StringUtils.isBlank(json)) {
+					continue;
+				}
+				String row = json;
+				long lineNumber = line;
+				progress.inFlight.acquire();
+				parsers.execute(() -> importRow(dao, appid, row, lineNumber, progress));
+				if (line % CHECKPOINT_INTERVAL == 0) {
+					progress.awaitInFlight();
+					progress.flushFailed();
+					writeCheckpoint(checkpoint, line);
+					progress.log(appid);
+				}
+			}
+			progress.awaitInFlight();
+			Files.deleteIfExists(checkpoint);
+		} catch (InterruptedException e) {
+			logger.warn("Import into app '{}' was interrupted.", appid);
+			Thread.currentThread().interrupt();
+		} finally {
+			parsers.shutdown();
+			progress.closeFailed();
+		}
+		progress.log(appid);
+		return progress.imported.get();
+	}
+
+	private static void importRow(CassandraDAO dao, String appid, String json, long line, Progress progress) {
+		try {
+			Map<String, Object> data = JSON_MAP_READER.readValue(json);
+			String id = data.get(Config._ID) == null ? Utils.getNewId() : String.valueOf(data.get(Config._ID));
+			data.put(Config._ID, id);
+			data.put(Config._APPID, appid);
+			data.putIfAbsent(Config._TIMESTAMP, Utils.timestamp());
+			String type = data.get(Config._TYPE) == null ? null : String.valueOf(data.get(Config._TYPE));
+			// the generated id is kept, so importing the failed objects again doesn't duplicate them
+			String row = ParaObjectUtils.getJsonWriterNoIdent().writeValueAsString(data);
+			dao.createRowAsync(id, appid, type, row, CassandraDAO.getLookupValues(data)).
+					whenComplete((counts, ex) -> {
+						if (ex != null) {
+							logger.warn("Failed to import object '{}' on line {}: {}", id, line, ex.getMessage());
+							progress.fail(row);
+							progress.inFlight.release();
+							return;
+						}
+						progress.imported.incrementAndGet();
+						counts.whenComplete((v, e) -> {
+							if (e != null) {
+								progress.countsFailed.incrementAndGet();
+							}
+							progress.inFlight.release();
+						});
+					});
+		} catch (Exception e) {
+			logger.warn("Failed to import line {} '{}': {}", line, StringUtils.abbreviate(json, 100), e.getMessage());
+			progress.fail(json);
+			progress.inFlight.release();
+		}
+	}
+
+	private static BufferedReader newReader(Path file) throws IOException {
+		InputStream in = Files.newInputStream(file);
+		if (file.toString().endsWith(".gz")) {
+			in = new GZIPInputStream(in, BUFFER_SIZE);
+		}
+		return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_SIZE);
+	}
+
+	private static long readCheckpoint(Path checkpoint) throws IOException {
+		if (Files.isReadable(checkpoint)) {
+			return NumberUtils.toLong(Files.readString(checkpoint).trim(), 0);
+		}
+		return 0;
+	}
+
+	private static void writeCheckpoint(Path checkpoint, long line) throws IOException {
+		Files.writeString(checkpoint, Long.toString(line));
+	}
+
+	/**
+	 * Import progress counters and the file of failed objects.
+	 */
+	private static final class Progress {
+		private final Semaphore inFlight = new Semaphore(CONCURRENCY);
+		private final AtomicLong imported = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+		private final AtomicLong countsFailed = new AtomicLong();
+		private final long started = System.nanoTime();
+		private final Path failedFile;
+		private BufferedWriter failedWriter;
+		private boolean closed;
+
+		Progress(Path failedFile) {
+			this.failedFile = failedFile;
+		}
+
+		/**
+		 * Appends a failed object to the file of failed objects, which is created on the first failure.
+		 * Objects which fail after an interruption are not written, they are after the checkpoint and imported again.
+		 */
+		synchronized void fail(String json) {
+			failed.incrementAndGet();
+			if (closed) {
+				return;
+			}
+			try {
+				if (failedWriter == null) {
+					failedWriter = Files.newBufferedWriter(failedFile, StandardCharsets.UTF_8,
+							StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+				}
+				failedWriter.write(json);
+				failedWriter.newLine();
+			} catch (IOException e) {
+				logger.error("Failed to write to {}: {}", failedFile, e.getMessage());
+			}
+		}
+
+		/**
+		 * Called before a checkpoint, so that no failed objects before it are lost if the import is interrupted.
+		 */
+		synchronized void flushFailed() throws IOException {
+			if (failedWriter != null) {
+				failedWriter.flush();
+			}
+		}
+
+		synchronized void closeFailed() throws IOException {
+			closed = true;
+			if (failedWriter != null) {
+				failedWriter.close();
+				failedWriter = null;
+			}
+		}
+
+		/**
+		 * Waits until all rows submitted so far are written.
+		 */
+		void awaitInFlight() throws InterruptedException {
+			inFlight.acquire(CONCURRENCY);
+			inFlight.release(CONCURRENCY);
+		}
+
+		void log(String appid) {
+			double seconds = Math.max(1, (System.nanoTime() - started) / 1000000) / 1000.0;
+			logger.info("Imported {} objects into app '{}' ({} failed{}), {} rows/s.", imported.get(), appid,
+					failed.get(), failed.get() > 0 ? " - see " + failedFile : "", Math.round(imported.get() / seconds));
+			if (countsFailed.get() > 0) {
+				logger.warn("The counts of {} imported objects in app '{}' couldn't be updated.", countsFailed.get(), appid);
+			}
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.datastax.oss.driver.api.core.AllNodesFailedException;
+import com.datastax.oss.driver.api.core.DriverTimeoutException;
+import com.datastax.oss.driver.api.core.NoNodeAvailableException;
+import com.datastax.oss.driver.api.core.config.DriverExecutionProfile;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import com.datastax.oss.driver.api.core.session.Request;
+import com.datastax.oss.driver.api.core.tracker.RequestTracker;
+import java.util.function.LongSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A circuit breaker for a Cassandra cluster. It opens when too many requests fail because the cluster
+ * is unreachable, so that requests fail fast instead of waiting for timeouts. After a while it half-opens
+ * and lets requests through - the first success closes it, the first failure opens it again for longer.
+ * Requests are tracked by registering the breaker as a driver {@link RequestTracker}.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class CassandraCircuitBreaker implements RequestTracker {
+
+	private static final Logger logger = LoggerFactory.getLogger(CassandraCircuitBreaker.class);
+	private static final int FAILURE_THRESHOLD = CassandraUtils.getConfigInt("cassandra.breaker_failure_threshold", 5);
+	private static final long FAILURE_WINDOW_MS = CassandraUtils.getConfigInt("cassandra.breaker_failure_window_ms", 10000);
+	private static final long OPEN_MS = CassandraUtils.getConfigInt("cassandra.breaker_open_ms", 5000);
+	private static final long MAX_OPEN_MS = CassandraUtils.getConfigInt("cassandra.breaker_max_open_ms", 60000);
+
+	/**
+	 * Circuit breaker states.
+	 */
+	enum State {
+		/**
+		 * Requests go through.
+		 */
+		CLOSED,
+		/**
+		 * Requests fail fast.
+		 */
+		OPEN,
+		/**
+		 * Requests go through until one of them succeeds or fails.
+		 */
+		HALF_OPEN
+	}
+
+	private final String cluster;
+	private final LongSupplier clock;
+	private volatile State state = State.CLOSED;
+	private volatile int failures;
+	private long firstFailure;
+	private long openedAt;
+	private long openFor = OPEN_MS;
+
+	CassandraCircuitBreaker(String cluster) {
+		this(cluster, System::currentTimeMillis);
+	}
+
+	CassandraCircuitBreaker(String cluster, LongSupplier clock) {
+		this.cluster = cluster;
+		this.clock = clock;
+	}
+
+	/**
+	 * @return the current state
+	 */
+	State getState() {
+		return state;
+	}
+
+	/**
+	 * @return the time to wait before trying again, after the breaker was opened
+	 */
+	synchronized long getOpenFor() {
+		return openFor;
+	}
+
+	/**
+	 * @return true if requests should be sent to the cluster
+	 */
+	boolean allowRequest() {
+		if (state != State.OPEN) {
+			return true;
+		}
+		synchronized (this) {
+			if (state == State.OPEN && clock.getAsLong() - openedAt >= openFor) {
+				setState(State.HALF_OPEN);
+			}
+			return state != State.OPEN;
+		}
+	}
+
+	synchronized void recordSuccess() {
+		failures = 0;
+		openFor = OPEN_MS;
+		if (state != State.CLOSED) {
+			setState(State.CLOSED);
+		}
+	}
+
+	synchronized void recordFailure() {
+		long now = clock.getAsLong();
+		if (state == State.HALF_OPEN) {
+			openFor = Math.min(openFor * 2, MAX_OPEN_MS);
+			open(now);
+		} else if (state == State.CLOSED) {
+			if (now - firstFailure > FAILURE_WINDOW_MS) {
+				failures = 0;
+				firstFailure = now;
+			}
+			if (++failures >= FAILURE_THRESHOLD) {
+				open(now);
+			}
+		}
+	}
+
+	/**
+	 * Opens the breaker immediately, e.g. when connecting to the cluster failed.
+	 */
+	synchronized void open() {
+		if (state == State.OPEN) {
+			openFor = Math.min(openFor * 2, MAX_OPEN_MS);
+		}
+		open(clock.getAsLong());
+	}
+
+	private void open(long now) {
+		openedAt = now;
+		setState(State.OPEN);
+	}
+
+	private void setState(State newState) {
+		if (state != newState) {
+			logger.warn("Circuit breaker for Cassandra cluster '{}' is now {}.", cluster, newState);
+		}
+		state = newState;
+	}
+
+	@Override
+	public void onSuccess(Request request, long latencyNanos, DriverExecutionProfile executionProfile,
+			Node node, String requestLogPrefix) {
+		if (state != State.CLOSED || failures > 0) {
+			recordSuccess();
+		}
+	}
+
+	@Override
+	public void onError(Request request, Throwable error, long latencyNanos, DriverExecutionProfile executionProfile,
+			Node node, String requestLogPrefix) {
+		// only errors which mean the cluster can't be reached count, not bad queries
+		if (error instanceof NoNodeAvailableException || error instanceof AllNodesFailedException ||
+				error instanceof DriverTimeoutException) {
+			recordFailure();
+		}
+	}
+
+	@Override
+	public void close() {
+	}
+}
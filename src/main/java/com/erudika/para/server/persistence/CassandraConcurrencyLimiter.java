@@ -0,0 +1,247 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.datastax.oss.driver.api.core.DriverTimeoutException;
+import com.datastax.oss.driver.api.core.RequestThrottlingException;
+import com.datastax.oss.driver.api.core.context.DriverContext;
+import com.datastax.oss.driver.api.core.servererrors.OverloadedException;
+import com.datastax.oss.driver.api.core.servererrors.ReadTimeoutException;
+import com.datastax.oss.driver.api.core.servererrors.WriteTimeoutException;
+import com.datastax.oss.driver.api.core.session.throttling.RequestThrottler;
+import com.datastax.oss.driver.api.core.session.throttling.Throttled;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the number of requests in flight to a Cassandra cluster, adjusting the limit to the measured latency.
+ * The limit follows a gradient algorithm - it grows while the latency of recent requests is close to the long-term
+ * latency and shrinks in proportion when it rises above it, i.e. when requests start queuing up on the cluster.
+ * Timeouts and overloaded errors shrink the limit by 10%. Requests over the limit wait in a queue of at most
+ * {@code para.cassandra.concurrency_max_queue} requests, beyond that they fail with {@link RequestThrottlingException}.
+ * <br>
+ * This class is instantiated by the driver, it is set as the request throttler of each session.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public final class CassandraConcurrencyLimiter implements RequestThrottler {
+
+	private static final Logger logger = LoggerFactory.getLogger(CassandraConcurrencyLimiter.class);
+	private static final int INITIAL_LIMIT = CassandraUtils.getConfigInt("cassandra.concurrency_initial_limit", 64);
+	private static final int MIN_LIMIT = CassandraUtils.getConfigInt("cassandra.concurrency_min_limit", 8);
+	private static final int MAX_LIMIT = CassandraUtils.getConfigInt("cassandra.concurrency_max_limit", 1024);
+	private static final int MAX_QUEUE = CassandraUtils.getConfigInt("cassandra.concurrency_max_queue", 10000);
+	private static final double TOLERANCE = 1.5;
+	private static final double SMOOTHING = 0.2;
+	private static final double SHORT_RTT_WEIGHT = 0.2;
+	private static final double LONG_RTT_WEIGHT = 1.0 / 600;
+	private static final double BACKOFF = 0.9;
+
+	private static final Map<String, CassandraConcurrencyLimiter> LIMITERS =
+			new ConcurrentHashMap<String, CassandraConcurrencyLimiter>();
+
+	private final String sessionName;
+	private final LongSupplier clock;
+	private final int maxQueue;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Deque<Throttled> queue = new ArrayDeque<Throttled>();
+	private final Map<Throttled, Long> started = new ConcurrentHashMap<Throttled, Long>();
+	private double limit = Math.max(MIN_LIMIT, Math.min(MAX_LIMIT, INITIAL_LIMIT));
+	private double shortRtt;
+	private double longRtt;
+	private int inFlight;
+	private boolean closed;
+
+	/**
+	 * Called by the driver.
+	 * @param context the driver context of the session
+	 */
+	public CassandraConcurrencyLimiter(DriverContext context) {
+		this(context.getSessionName(), System::nanoTime, MAX_QUEUE);
+		LIMITERS.put(sessionName, this);
+	}
+
+	/**
+	 * A limiter which isn't registered for a session.
+	 * @param sessionName the session name
+	 * @param clock the source of request start and end times, in nanoseconds
+	 * @param maxQueue the maximum number of requests waiting for the limit
+	 */
+	CassandraConcurrencyLimiter(String sessionName, LongSupplier clock, int maxQueue) {
+		this.sessionName = sessionName;
+		this.clock = clock;
+		this.maxQueue = maxQueue;
+	}
+
+	/**
+	 * Returns the limiter of a session.
+	 * @param sessionName the session name, which is the cluster name
+	 * @return the limiter or null if there isn't one
+	 */
+	static CassandraConcurrencyLimiter getLimiter(String sessionName) {
+		return LIMITERS.get(sessionName);
+	}
+
+	/**
+	 * @return the current number of requests allowed in flight
+	 */
+	int getLimit() {
+		lock.lock();
+		try {
+			return (int) limit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void register(Throttled request) {
+		boolean ready = false;
+		String rejected = null;
+		lock.lock();
+		try {
+			if (closed) {
+				rejected = "Session is closing";
+			} else if (inFlight < (int) limit) {
+				inFlight++;
+				ready = true;
+			} else if (queue.size() < maxQueue) {
+				queue.add(request);
+			} else {
+				rejected = "Too many requests queued for Cassandra session '" + sessionName + "' (" + maxQueue + ")";
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (ready) {
+			start(request, false);
+		} else if (rejected != null) {
+			request.onThrottleFailure(new RequestThrottlingException(rejected));
+		}
+	}
+
+	@Override
+	public void signalSuccess(Throttled request) {
+		Long start = started.remove(request);
+		if (start != null) {
+			onResponse(clock.getAsLong() - start, false);
+		}
+	}
+
+	@Override
+	public void signalError(Throttled request, Throwable error) {
+		Long start = started.remove(request);
+		if (start != null) {
+			// only errors caused by load shrink the limit, not bad queries
+			onResponse(clock.getAsLong() - start, error instanceof DriverTimeoutException ||
+					error instanceof OverloadedException || error instanceof ReadTimeoutException ||
+					error instanceof WriteTimeoutException);
+		}
+	}
+
+	@Override
+	public void signalTimeout(Throttled request) {
+		Long start = started.remove(request);
+		if (start != null) {
+			onResponse(clock.getAsLong() - start, true);
+		} else {
+			lock.lock();
+			try {
+				queue.remove(request);
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		List<Throttled> queued;
+		lock.lock();
+		try {
+			closed = true;
+			queued = new ArrayList<Throttled>(queue);
+			queue.clear();
+		} finally {
+			lock.unlock();
+		}
+		LIMITERS.remove(sessionName, this);
+		for (Throttled request : queued) {
+			request.onThrottleFailure(new RequestThrottlingException("Session is closing"));
+		}
+	}
+
+	private void start(Throttled request, boolean wasDelayed) {
+		started.put(request, clock.getAsLong());
+		request.onThrottleReady(wasDelayed);
+	}
+
+	private void onResponse(long rtt, boolean dropped) {
+		List<Throttled> ready = new ArrayList<Throttled>();
+		lock.lock();
+		try {
+			inFlight--;
+			// with a coarse clock, a response may take no time at all, which would make the gradient undefined
+			updateLimit(Math.max(1, rtt), dropped);
+			while (inFlight < (int) limit && !queue.isEmpty()) {
+				inFlight++;
+				ready.add(queue.poll());
+			}
+		} finally {
+			lock.unlock();
+		}
+		for (Throttled request : ready) {
+			start(request, true);
+		}
+	}
+
+	/**
+	 * The gradient is the ratio of the long-term latency to the recent latency, between 0.5 and 1.
+	 * The square root of the limit is added, so that the limit keeps growing slowly while latency is stable.
+	 */
+	private void updateLimit(long rtt, boolean dropped) {
+		double oldLimit = limit;
+		if (dropped) {
+			limit = Math.max(MIN_LIMIT, limit * BACKOFF);
+		} else {
+			shortRtt = shortRtt == 0 ? rtt : shortRtt * (1 - SHORT_RTT_WEIGHT) + rtt * SHORT_RTT_WEIGHT;
+			longRtt = longRtt == 0 ? rtt : longRtt * (1 - LONG_RTT_WEIGHT) + rtt * LONG_RTT_WEIGHT;
+			if (longRtt > shortRtt * 2) {
+				// latency dropped for good, e.g. after a slow period, so the baseline catches up quickly
+				longRtt = shortRtt * 2;
+			}
+			if (inFlight < limit / 2) {
+				// the limit isn't what holds requests back, so latency says nothing about it
+				return;
+			}
+			double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+			double newLimit = limit * gradient + Math.sqrt(limit);
+			limit = Math.max(MIN_LIMIT, Math.min(MAX_LIMIT, limit * (1 - SMOOTHING) + newLimit * SMOOTHING));
+		}
+		if ((int) oldLimit != (int) limit && logger.isDebugEnabled()) {
+			logger.debug("Concurrency limit for Cassandra session '{}' is now {}.", sessionName, (int) limit);
+		}
+	}
+}
@@ -17,9 +17,9 @@
  */
 package com.erudika.para.server.persistence;
 
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
 import com.datastax.oss.driver.api.core.cql.PagingState;
 import com.datastax.oss.driver.api.core.cql.PreparedStatement;
-import com.datastax.oss.driver.api.core.cql.ResultSet;
 import com.datastax.oss.driver.api.core.cql.Row;
 import com.datastax.oss.driver.api.core.cql.SimpleStatement;
 import com.datastax.oss.driver.api.core.cql.Statement;
@@ -35,17 +35,38 @@ import com.erudika.para.core.utils.Utils;
 import static com.erudika.para.server.persistence.CassandraUtils.getClient;
 import static com.erudika.para.server.persistence.CassandraUtils.getPreparedStatement;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
 import java.io.IOException;
 import java.lang.annotation.Annotation;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Strings;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -56,6 +77,42 @@ import org.slf4j.LoggerFactory;
 public class CassandraDAO implements DAO {
 
 	private static final Logger logger = LoggerFactory.getLogger(CassandraDAO.class);
+	private static final ObjectReader JSON_MAP_READER = ParaObjectUtils.getJsonReader(Map.class);
+	private static final ObjectMapper JSON_MAPPER = ParaObjectUtils.getJsonMapper();
+	private static final boolean PREFETCH_NEXT_PAGE = CassandraUtils.getConfigBoolean("cassandra.prefetch_next_page", false);
+	private static final long PREFETCH_TTL_MS = 60000;
+	private static final int MAX_PREFETCHED_PAGES = CassandraUtils.getConfigInt("cassandra.max_prefetched_pages", 16);
+	private static final int PARALLEL_DESERIALIZATION_THRESHOLD =
+			CassandraUtils.getConfigInt("cassandra.parallel_deserialization_threshold", 500);
+	private static final int DESERIALIZATION_THREADS = CassandraUtils.getConfigInt("cassandra.deserialization_threads",
+			Math.min(4, Runtime.getRuntime().availableProcessors()));
+	static final String CHUNKED_PREFIX = "#chunks:";
+	private static final String COLD_PAGE_PREFIX = "cold:";
+	private static final byte[] CHUNKED_PREFIX_BYTES = CHUNKED_PREFIX.getBytes(StandardCharsets.UTF_8);
+	private static final long CHANGELOG_BUCKET_MS = 3600000;
+	private static final int CHANGELOG_LAG_MS = CassandraUtils.getConfigInt("cassandra.changelog_lag_ms", 1000);
+	private static final String OP_CREATE = "create";
+	private static final String OP_UPDATE = "update";
+	private static final String ALL_TYPES = "*";
+	private static final String OP_DELETE = "delete";
+	private static final int CHUNK_THRESHOLD = CassandraUtils.getConfigInt("cassandra.chunk_threshold_kb", 256) * 1024;
+	private static final int CHUNK_SIZE = CassandraUtils.getConfigInt("cassandra.chunk_size_kb", 64) * 1024;
+	static final String COLUMNS = "id, json, json_updates" + (CassandraUtils.FIELD_UPDATES_ENABLED ? ", field_updates" : "");
+	private static final int MAX_FIELD_SNAPSHOTS = CassandraUtils.getConfigInt("cassandra.field_updates_cache_size", 10000);
+	private static final long MAX_FIELD_SNAPSHOT_BYTES =
+			CassandraUtils.getConfigInt("cassandra.field_updates_cache_mb", 64) * 1024L * 1024L;
+	private static final Map<String, Snapshot> FIELD_SNAPSHOTS = new ConcurrentHashMap<String, Snapshot>();
+	private static final Queue<Snapshot> SNAPSHOT_QUEUE = new ConcurrentLinkedQueue<Snapshot>();
+	private static final AtomicInteger SNAPSHOT_QUEUE_SIZE = new AtomicInteger();
+	private static final AtomicLong SNAPSHOT_BYTES = new AtomicLong();
+	private static final boolean SNAPSHOTS_ENABLED = CassandraUtils.FIELD_UPDATES_ENABLED || !CassandraUtils.LOOKUP_FIELDS.isEmpty();
+	private static final int PAGE_BUDGET = CassandraUtils.getConfigInt("cassandra.page_budget_kb", 4096) * 1024;
+	private static final int INITIAL_FETCH_SIZE = 100;
+	private static final Map<String, Double> ROW_SIZES = new ConcurrentHashMap<String, Double>();
+	private static final CassandraReadBatcher READ_BATCHER =
+			CassandraUtils.getConfigBoolean("cassandra.read_batching_enabled", false) ? new CassandraReadBatcher() : null;
+	private static final Map<String, Prefetch> PREFETCHED = new ConcurrentHashMap<String, Prefetch>();
+	private static volatile ExecutorService deserializationExecutor;
 
 	static {
 		// set up automatic table creation and deletion
@@ -96,7 +153,8 @@ public class CassandraDAO implements DAO {
 			so.setTimestamp(Utils.timestamp());
 		}
 		so.setAppid(appid);
-		createRow(so.getId(), appid, toRow(so, null));
+		createRow(so.getId(), appid, so.getType(), toRow(so, null),
+				getLookupValues(ParaObjectUtils.getAnnotatedFields(so, null)));
 		logger.debug("DAO.create() {}", so.getId());
 		return so.getId();
 	}
@@ -132,17 +190,20 @@ public class CassandraDAO implements DAO {
 	//				ROW FUNCTIONS
 	/////////////////////////////////////////////
 
-	private String createRow(String key, String appid, String row) {
+	private String createRow(String key, String appid, String type, String row, Map<String, String> lookups) {
 		if (StringUtils.isBlank(key) || StringUtils.isBlank(appid) || row == null || row.isEmpty()) {
 			return null;
 		}
 		try {
+			// an overwritten object is only counted again if its type changed
+			String storedType = CassandraUtils.COUNTS_ENABLED ? getStoredType(readJson(appid, key)) : null;
 			// if there isn't a document with the same id then create a new document
 			// else replace the document with the same id with the new one
-			PreparedStatement ps = getPreparedStatement("INSERT INTO " +
-					CassandraUtils.getTableNameForAppid(appid) + " (id, json, json_updates) VALUES (?, ?, NULL);");
-			getClient().execute(ps.bind(key, row));
-			logger.debug("Created id: " + key + " row: " + row);
+			getClient(appid).execute(withSideWrites(appid, getInsertQuery(appid), Arrays.asList(key, storeJson(appid, key, row)),
+					key, OP_CREATE, Collections.emptyMap(), lookups));
+			evictFields(appid, key);
+			updateCounts(appid, countCreate(new HashMap<String, Long>(4), storedType, type));
+			logger.debug("Created id: {} row: {}", key, row);
 		} catch (Exception e) {
 			logger.error(null, e);
 			throwIfNecessary(e);
@@ -150,33 +211,125 @@ public class CassandraDAO implements DAO {
 		return key;
 	}
 
+	/**
+	 * Writes a row asynchronously. Used for bulk loading, where many rows are in flight at once.
+	 * The returned future completes when the row is written, with a future of its count update.
+	 * Counts are updated afterwards, so their failures don't fail the write. If counts are enabled,
+	 * the stored object is read first, so that overwriting it doesn't count it twice.
+	 */
+	CompletableFuture<CompletableFuture<Void>> createRowAsync(String key, String appid, String type, String row,
+			Map<String, String> lookups) {
+		CompletableFuture<String> stored = CassandraUtils.COUNTS_ENABLED ? readJsonAsync(appid, key) :
+				CompletableFuture.completedFuture(null);
+		String json = storeJson(appid, key, row);
+		return stored.thenCompose(storedJson -> getClient(appid).executeAsync(withSideWrites(appid, getInsertQuery(appid),
+				Arrays.asList(key, json), key, OP_CREATE, Collections.emptyMap(), lookups)).
+				thenApply(rs -> {
+					evictFields(appid, key);
+					return updateCounts(appid, countCreate(new HashMap<String, Long>(4), getStoredType(storedJson), type));
+				}));
+	}
+
+	private static String getInsertQuery(String appid) {
+		return "INSERT INTO " + CassandraUtils.getTableNameForAppid(appid) +
+				(CassandraUtils.FIELD_UPDATES_ENABLED ? " (id, json, json_updates, field_updates) VALUES (?, ?, NULL, NULL);" :
+				" (id, json, json_updates) VALUES (?, ?, NULL);");
+	}
+
 	private <P extends ParaObject> void updateRow(P so, String appid) {
 		if (so == null || so.getId() == null || StringUtils.isBlank(appid)) {
 			return;
 		}
+		String id = so.getId();
 		try {
 			Map<String, Object> data = ParaObjectUtils.getAnnotatedFields(so, Locked.class);
-			PreparedStatement ps = getPreparedStatement("UPDATE " +
-					CassandraUtils.getTableNameForAppid(appid) + " SET json_updates = ? WHERE id = ?;");
-			getClient().execute(ps.bind(ParaObjectUtils.getJsonWriterNoIdent().writeValueAsString(data), so.getId()));
-			logger.debug("Updated id: " + so.getId());
+			Map<String, String> lookups = getLookupValues(data);
+			Map<String, Object> snapshot = lookups.isEmpty() ? null : getSnapshot(appid, id);
+			Map<String, String> oldLookups = getOldLookups(appid, id, lookups, snapshot);
+			String table = CassandraUtils.getTableNameForAppid(appid);
+			String updates = ParaObjectUtils.getJsonWriterNoIdent().writeValueAsString(data);
+			// only the fields which changed since the object was read are written
+			Map<String, String> changed = CassandraUtils.FIELD_UPDATES_ENABLED ? getChangedFields(appid, id, data) : null;
+			if (rewriteChunked(appid, id, updates, changed, oldLookups, lookups)) {
+				logger.debug("Rewrote id: {}", id);
+			} else if (changed != null) {
+				getClient(appid).execute(withSideWrites(appid, "UPDATE " + table +
+						" SET field_updates = field_updates + ? WHERE id = ?;",
+						Arrays.asList(changed, id), id, OP_UPDATE, oldLookups, lookups));
+			} else {
+				getClient(appid).execute(withSideWrites(appid, "UPDATE " + table + " SET json_updates = ? WHERE id = ?;",
+						Arrays.asList(updates, id), id, OP_UPDATE, oldLookups, lookups));
+				if (snapshot != null) {
+					Map<String, Object> fields = new HashMap<String, Object>(snapshot);
+					fields.putAll(data);
+					snapshotFields(appid, id, fields);
+				}
+			}
+			logger.debug("Updated id: {}", id);
 		} catch (Exception e) {
+			// the snapshot already has the new values, which may not have been written
+			evictFields(appid, id);
 			logger.error(null, e);
 			throwIfNecessary(e);
 		}
 	}
 
+	/**
+	 * Returns the lookup values of the stored object and adds those which aren't updated to the new values.
+	 * The old values are taken from the last read, the stored object is only read if there wasn't one.
+	 */
+	private Map<String, String> getOldLookups(String appid, String id, Map<String, String> lookups,
+			Map<String, Object> snapshot) {
+		if (lookups.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		Map<String, String> oldLookups = getLookupValues(snapshot != null ? snapshot : parseJson(readJson(appid, id)));
+		oldLookups.forEach(lookups::putIfAbsent);
+		return oldLookups;
+	}
+
+	/**
+	 * Updates are never chunked, so large ones are merged into the stored object, which is rewritten in chunks.
+	 * @return false if the update is small enough to be written as it is, or there is no stored object
+	 */
+	private boolean rewriteChunked(String appid, String id, String updates, Map<String, String> changed,
+			Map<String, String> oldLookups, Map<String, String> lookups) {
+		int size = changed == null ? updates.length() : changed.values().stream().mapToInt(String::length).sum();
+		if (!CassandraUtils.CHUNKING_ENABLED || size <= CHUNK_THRESHOLD) {
+			return false;
+		}
+		String stored = readJson(appid, id);
+		if (stored == null) {
+			return false;
+		}
+		getClient(appid).execute(withSideWrites(appid, "UPDATE " + CassandraUtils.getTableNameForAppid(appid) +
+				(CassandraUtils.FIELD_UPDATES_ENABLED ? " SET json = ?, json_updates = NULL, field_updates = NULL WHERE id = ?;" :
+				" SET json = ?, json_updates = NULL WHERE id = ?;"),
+				Arrays.asList(storeJson(appid, id, mergeJson(stored, updates)), id), id, OP_UPDATE, oldLookups, lookups));
+		return true;
+	}
+
 	private <P extends ParaObject> P readRow(String key, String appid) {
 		if (StringUtils.isBlank(key) || StringUtils.isBlank(appid)) {
 			return null;
 		}
 		try {
-			PreparedStatement ps = getPreparedStatement("SELECT json, json_updates FROM " +
-					CassandraUtils.getTableNameForAppid(appid) + " WHERE id = ?;");
-			Row r = getClient().execute(ps.bind(key)).one();
-			if (r != null) {
-				logger.debug("Read id: " + key + " row: " + r);
-				return fromRow(r.getString("json"), r.getString("json_updates"));
+			Object[] row;
+			if (READ_BATCHER != null) {
+				// concurrent reads are combined into one query
+				row = READ_BATCHER.read(appid, key).thenCompose(r -> resolveRow(appid, key, r)).join();
+			} else {
+				PreparedStatement ps = getPreparedStatement(appid, "SELECT " + COLUMNS + " FROM " +
+						CassandraUtils.getTableNameForAppid(appid) + " WHERE id = ?;");
+				row = resolveRow(appid, key, getClient(appid).execute(ps.bind(key)).one()).join();
+			}
+			if (row != null) {
+				logger.debug("Read id: {}", key);
+				Map<String, Object> data = mergeRow(row);
+				if (data != null && SNAPSHOTS_ENABLED) {
+					snapshotFields(appid, key, data);
+				}
+				return data == null ? null : ParaObjectUtils.<P>setAnnotatedFields(data);
 			}
 		} catch (Exception e) {
 			logger.error(null, e);
@@ -189,10 +342,24 @@ public class CassandraDAO implements DAO {
 			return;
 		}
 		try {
-			PreparedStatement ps = getPreparedStatement("DELETE FROM " +
-					CassandraUtils.getTableNameForAppid(appid) + " WHERE id = ?;");
-			getClient().execute(ps.bind(key));
-			logger.debug("Deleted id: " + key);
+			// only an object which exists is counted as deleted
+			Map<String, Object> stored = CassandraUtils.LOOKUP_FIELDS.isEmpty() && !CassandraUtils.COUNTS_ENABLED ? null :
+					parseJson(readJson(appid, key));
+			Map<String, String> oldLookups = getLookupValues(stored);
+			if (CassandraUtils.TIERING_ENABLED) {
+				// the archived copy goes first, if this fails the object is still in the main table and nothing is lost
+				getClient(appid).execute(getPreparedStatement(appid, "DELETE FROM " +
+						CassandraUtils.getColdTableNameForAppid(appid) + " WHERE id = ?;").bind(key));
+			}
+			getClient(appid).execute(withSideWrites(appid, "DELETE FROM " + CassandraUtils.getTableNameForAppid(appid) +
+					" WHERE id = ?;", Arrays.asList(key), key, OP_DELETE, oldLookups, Collections.emptyMap()));
+			if (CassandraUtils.CHUNKING_ENABLED) {
+				getClient(appid).execute(getPreparedStatement(appid, "DELETE FROM " +
+						CassandraUtils.getChunksTableNameForAppid(appid) + " WHERE id = ?;").bind(key));
+			}
+			evictFields(appid, key);
+			updateCounts(appid, countDelete(new HashMap<String, Long>(2), getStoredType(stored)));
+			logger.debug("Deleted id: {}", key);
 		} catch (Exception e) {
 			logger.error(null, e);
 			throwIfNecessary(e);
@@ -208,9 +375,15 @@ public class CassandraDAO implements DAO {
 		if (objects == null || objects.isEmpty() || StringUtils.isBlank(appid)) {
 			return;
 		}
-		ArrayList<String> values = new ArrayList<String>(objects.size());
+		ArrayList<Object> values = new ArrayList<Object>(objects.size());
+		Map<String, Long> counts = new HashMap<String, Long>();
 		StringBuilder batch = new StringBuilder("BEGIN BATCH ");
+		long now = Utils.timestamp();
 		try {
+			// overwritten objects are only counted again if their type changed
+			Map<String, String> stored = CassandraUtils.COUNTS_ENABLED ? readAllJson(appid, objects.stream().
+					filter(so -> so != null && !StringUtils.isBlank(so.getId())).map(ParaObject::getId).
+					collect(Collectors.toList())) : new HashMap<String, String>();
 			for (ParaObject so : objects) {
 				if (so != null) {
 					if (StringUtils.isBlank(so.getId())) {
@@ -223,15 +396,23 @@ public class CassandraDAO implements DAO {
 					so.setAppid(appid);
 					batch.append("INSERT INTO ").append(CassandraUtils.getTableNameForAppid(appid)).
 							append(" (id, json) VALUES (?, ?);");
+					String row = toRow(so, null);
 					values.add(so.getId());
-					values.add(toRow(so, null));
+					values.add(storeJson(appid, so.getId(), row));
+					appendLookups(batch, values, appid, so.getId(), Collections.emptyMap(),
+							getLookupValues(ParaObjectUtils.getAnnotatedFields(so, null)));
+					appendChange(batch, values, appid, so.getId(), OP_CREATE, now);
+					// the same id may be given more than once, the last object wins
+					countCreate(counts, getStoredType(stored.put(so.getId(), row)), so.getType());
 				}
 			}
 
 			if (!values.isEmpty()) {
 				batch.append("APPLY BATCH");
-				PreparedStatement ps = getClient().prepare(batch.toString());
-				getClient().execute(ps.bind(values.toArray()));
+				PreparedStatement ps = getClient(appid).prepare(batch.toString());
+				getClient(appid).execute(ps.bind(values.toArray()));
+				objects.stream().filter(Objects::nonNull).forEach(so -> evictFields(appid, so.getId()));
+				updateCounts(appid, counts);
 			}
 		} catch (Exception e) {
 			logger.error(null, e);
@@ -246,24 +427,31 @@ public class CassandraDAO implements DAO {
 			return new LinkedHashMap<String, P>();
 		}
 		Map<String, P> results = new LinkedHashMap<String, P>(keys.size(), 0.75f, true);
-		PreparedStatement ps = getPreparedStatement("SELECT id, json, json_updates FROM " +
+		PreparedStatement ps = getPreparedStatement(appid, "SELECT " + COLUMNS + " FROM " +
 				CassandraUtils.getTableNameForAppid(appid) + " WHERE id = ?;");
 
-		keys.stream().map(key -> getClient().executeAsync(ps.bind(key)).thenAccept(rows -> {
-			Row row = rows.one();
-			if (row != null) {
-				String json = row.getString("json");
-				String jsonUpdates = row.getString("json_updates");
-				if (!StringUtils.isBlank(json)) {
-					P obj = fromRow(json, jsonUpdates);
-					results.put(row.getString("id"), obj);
+		List<CompletableFuture<P>> reads = keys.stream().map(key -> getClient(appid).executeAsync(ps.bind(key)).
+				toCompletableFuture().thenCompose(rows -> resolveRow(appid, key, rows.one())).
+				thenApply(row -> row == null ? null : this.<P>fromRow(row))).collect(Collectors.toList());
+		for (CompletableFuture<P> read : reads) {
+			try {
+				P obj = read.join();
+				if (obj != null) {
+					results.put(obj.getId(), obj);
 				}
+			} catch (Exception e) {
+				logger.error(null, e);
 			}
-		}).toCompletableFuture()).forEach(CompletableFuture::join);
+		}
 		logger.debug("DAO.readAll() {}", results.size());
 		return results;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * The main table is scanned first, then the cold table, so objects which were moved to the cold table by
+	 * {@link CassandraTiering} are included, merged with the updates made to them since they were archived.
+	 */
 	@Override
 	public <P extends ParaObject> List<P> readPage(String appid, Pager pager) {
 		LinkedList<P> results = new LinkedList<P>();
@@ -274,39 +462,8 @@ public class CassandraDAO implements DAO {
 			pager = new Pager();
 		}
 		try {
-			Statement<?> st = SimpleStatement.newInstance("SELECT json, json_updates FROM " +
-					CassandraUtils.getTableNameForAppid(appid) + ";").
-					setPageSize(pager.getLimit());
-			String lastPage = pager.getLastKey();
-			if (lastPage != null) {
-				if ("end".equals(lastPage)) {
-					return results;
-				} else {
-					st = st.setPagingState(PagingState.fromString(lastPage));
-				}
-			}
-			ResultSet rs = getClient().execute(st);
-			PagingState nextPage = rs.getExecutionInfo().getSafePagingState();
-
-			int remaining = rs.getAvailableWithoutFetching();
-			for (Row row : rs) {
-				if (row != null) {
-					P obj = fromRow(row.getString("json"), row.getString("json_updates"));
-					if (obj != null) {
-						results.add(obj);
-					}
-				}
-				if (--remaining == 0) {
-					break;
-				}
-			}
-
-			if (nextPage != null) {
-				pager.setLastKey(nextPage.toString());
-			} else {
-				pager.setLastKey("end");
-			}
-
+			List<Object[]> rows = readPageValues(appid, pager);
+			results.addAll(this.<P>fromRows(rows));
 			if (!results.isEmpty()) {
 				pager.setCount(pager.getCount() + results.size());
 			}
@@ -317,6 +474,90 @@ public class CassandraDAO implements DAO {
 		return results;
 	}
 
+	/**
+	 * Reads the rows of a page, from the main table and then from the cold table, if tiering is enabled.
+	 * Main rows which only hold the updates made to an object after it was archived are skipped in the main table
+	 * and merged with the archived object when the cold table is scanned. The last key of the pager
+	 * is the paging state of the table being scanned, prefixed with {@link #COLD_PAGE_PREFIX} for the cold table.
+	 */
+	private List<Object[]> readPageValues(String appid, Pager pager) {
+		String lastPage = pager.getLastKey();
+		if ("end".equals(lastPage)) {
+			return new ArrayList<Object[]>(0);
+		}
+		List<Object[]> rows = new ArrayList<Object[]>();
+		if (lastPage == null || !lastPage.startsWith(COLD_PAGE_PREFIX)) {
+			rows.addAll(resolveRows(appid, readPageRows(appid, pager)));
+			if (!CassandraUtils.TIERING_ENABLED || !"end".equals(pager.getLastKey())) {
+				return rows;
+			}
+			// the main table is done, the rest of the page is filled from the cold table
+			pager.setLastKey(COLD_PAGE_PREFIX);
+		}
+		if (rows.size() < pager.getLimit()) {
+			rows.addAll(readColdPageRows(appid, pager, pager.getLimit() - rows.size()));
+		}
+		return rows;
+	}
+
+	private List<Object[]> readColdPageRows(String appid, Pager pager, int limit) {
+		String pagingState = StringUtils.trimToNull(pager.getLastKey().substring(COLD_PAGE_PREFIX.length()));
+		Statement<?> st = SimpleStatement.newInstance("SELECT id, json FROM " +
+				CassandraUtils.getColdTableNameForAppid(appid) + ";").setPageSize(getFetchSize(appid, limit));
+		if (pagingState != null) {
+			st = st.setPagingState(PagingState.fromString(pagingState));
+		}
+		AsyncResultSet rs = getClient(appid).executeAsync(st).toCompletableFuture().join();
+		List<CompletableFuture<String[]>> archived = new ArrayList<CompletableFuture<String[]>>(rs.remaining());
+		for (Row row : rs.currentPage()) {
+			archived.add(CassandraTiering.readHot(appid, row.getString(0), row.getString(1)));
+		}
+		PagingState nextPage = rs.getExecutionInfo().getSafePagingState();
+		pager.setLastKey(nextPage == null ? "end" : COLD_PAGE_PREFIX + nextPage.toString());
+		List<Object[]> rows = new ArrayList<Object[]>(archived.size());
+		for (CompletableFuture<String[]> row : archived) {
+			String[] r = row.join();
+			if (r != null) {
+				rows.add(r);
+			}
+		}
+		return rows;
+	}
+
+	private List<Row> readPageRows(String appid, Pager pager) {
+		String lastPage = pager.getLastKey();
+		if ("end".equals(lastPage)) {
+			return new ArrayList<Row>(0);
+		}
+		int limit = pager.getLimit();
+		AsyncResultSet rs = fetchPage(appid, limit, lastPage);
+		List<Row> rows = new ArrayList<Row>(rs.remaining());
+		PagingState nextPage;
+		while (true) {
+			int fetched = rows.size();
+			rs.currentPage().forEach(rows::add);
+			observeRowSizes(appid, rows.subList(fetched, rows.size()));
+			nextPage = rs.getExecutionInfo().getSafePagingState();
+			if (nextPage == null || rows.size() >= limit) {
+				break;
+			}
+			// a page is fetched in several smaller parts when its rows are too large to fit in the byte budget
+			rs = executePage(appid, getFetchSize(appid, limit - rows.size()), nextPage.toString()).
+					toCompletableFuture().join();
+		}
+
+		if (nextPage != null) {
+			pager.setLastKey(nextPage.toString());
+			if (PREFETCH_NEXT_PAGE && rs.hasMorePages()) {
+				// the next page is now in flight while the caller deserializes the current one
+				prefetchPage(appid, limit, pager.getLastKey());
+			}
+		} else {
+			pager.setLastKey("end");
+		}
+		return rows;
+	}
+
 	@Override
 	public <P extends ParaObject> void updateAll(String appid, List<P> objects) {
 		if (StringUtils.isBlank(appid) || objects == null) {
@@ -331,7 +572,8 @@ public class CassandraDAO implements DAO {
 			}
 			// we read all existing rows first then merge the new data with existing data
 			Map<String, P> existing = readAll(appid, keys, true);
-			ArrayList<String> values = new ArrayList<String>(objects.size());
+			long now = Utils.timestamp();
+			ArrayList<Object> values = new ArrayList<Object>(objects.size());
 			StringBuilder batch = new StringBuilder("BEGIN BATCH ");
 			for (P newObj : objects) {
 				if (newObj != null) {
@@ -342,21 +584,27 @@ public class CassandraDAO implements DAO {
 						Map<String, Object> newData = ParaObjectUtils.getAnnotatedFields(newObj, Locked.class);
 						oldData.putAll(newData);
 
-						long now = Utils.timestamp();
 						newObj.setUpdated(now);
 						oldData.put(Config._UPDATED, now);
 						oldData.put(Config._APPID, appid);
 						batch.append("UPDATE ").append(CassandraUtils.getTableNameForAppid(appid)).
-								append(" SET json = ? WHERE id = ?;");
-						values.add(ParaObjectUtils.getJsonWriterNoIdent().writeValueAsString(oldData));
+								append(CassandraUtils.FIELD_UPDATES_ENABLED ?
+										" SET json = ?, json_updates = NULL, field_updates = NULL WHERE id = ?;" :
+										" SET json = ?, json_updates = NULL WHERE id = ?;");
+						values.add(storeJson(appid, newObj.getId(),
+								ParaObjectUtils.getJsonWriterNoIdent().writeValueAsString(oldData)));
 						values.add(newObj.getId());
+						appendLookups(batch, values, appid, newObj.getId(),
+								getLookupValues(ParaObjectUtils.getAnnotatedFields(oldObj, null)), getLookupValues(oldData));
+						appendChange(batch, values, appid, newObj.getId(), OP_UPDATE, now);
 					}
 				}
 			}
 			if (!values.isEmpty()) {
 				batch.append("APPLY BATCH");
-				PreparedStatement ps = getClient().prepare(batch.toString());
-				getClient().execute(ps.bind(values.toArray()));
+				PreparedStatement ps = getClient(appid).prepare(batch.toString());
+				getClient(appid).execute(ps.bind(values.toArray()));
+				objects.stream().filter(Objects::nonNull).forEach(so -> evictFields(appid, so.getId()));
 			}
 		} catch (Exception e) {
 			logger.error(null, e);
@@ -371,21 +619,44 @@ public class CassandraDAO implements DAO {
 			return;
 		}
 		try {
-			ArrayList<String> values = new ArrayList<String>(objects.size());
+			ArrayList<Object> values = new ArrayList<Object>(objects.size());
+			Map<String, Long> counts = new HashMap<String, Long>();
 			StringBuilder batch = new StringBuilder("BEGIN BATCH ");
+			long now = Utils.timestamp();
+			// the stored values are removed from the lookup tables, these may differ from the given objects,
+			// and only objects which exist are counted as deleted
+			Map<String, String> stored = CassandraUtils.LOOKUP_FIELDS.isEmpty() && !CassandraUtils.COUNTS_ENABLED ?
+					new HashMap<String, String>() : readAllJson(appid, objects.stream().filter(so -> so != null && so.getId() != null).
+							map(ParaObject::getId).collect(Collectors.toList()));
 			for (ParaObject so : objects) {
 				if (so != null) {
 					so.setAppid(appid);
 					batch.append("DELETE FROM ").append(CassandraUtils.getTableNameForAppid(appid)).
 							append(" WHERE id = ?;");
 					values.add(so.getId());
+					appendLookups(batch, values, appid, so.getId(), getLookupValues(parseJson(stored.get(so.getId()))),
+							Collections.emptyMap());
+					if (CassandraUtils.CHUNKING_ENABLED) {
+						batch.append("DELETE FROM ").append(CassandraUtils.getChunksTableNameForAppid(appid)).
+								append(" WHERE id = ?;");
+						values.add(so.getId());
+					}
+					if (CassandraUtils.TIERING_ENABLED) {
+						batch.append("DELETE FROM ").append(CassandraUtils.getColdTableNameForAppid(appid)).
+								append(" WHERE id = ?;");
+						values.add(so.getId());
+					}
+					appendChange(batch, values, appid, so.getId(), OP_DELETE, now);
+					countDelete(counts, getStoredType(stored.remove(so.getId())));
 				}
 			}
 
 			if (!values.isEmpty()) {
 				batch.append("APPLY BATCH");
-				PreparedStatement ps = getClient().prepare(batch.toString());
-				getClient().execute(ps.bind(values.toArray()));
+				PreparedStatement ps = getClient(appid).prepare(batch.toString());
+				getClient(appid).execute(ps.bind(values.toArray()));
+				objects.stream().filter(Objects::nonNull).forEach(so -> evictFields(appid, so.getId()));
+				updateCounts(appid, counts);
 			}
 		} catch (Exception e) {
 			logger.error(null, e);
@@ -394,10 +665,866 @@ public class CassandraDAO implements DAO {
 		logger.debug("DAO.deleteAll() {}", objects.size());
 	}
 
+	/**
+	 * Deletes objects which were just read from the table, e.g. by {@link CassandraPurger}. Unlike
+	 * {@link #deleteAll(java.lang.String, java.util.List)}, there is no logged batch spanning many partitions - each
+	 * object is deleted with its own single-partition requests, all sent asynchronously. The chunks, archived copy,
+	 * lookup values and change record of an object are written first and its main row last, so an object which failed
+	 * to be deleted is still there and can be deleted again. Failures are always reported, whether or not
+	 * write errors throw exceptions.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param objects the stored objects, their lookup values and type are taken from these
+	 * @return the ids of the objects which failed to be deleted
+	 */
+	List<String> deleteStored(String appid, List<Map<String, Object>> objects) {
+		List<String> failed = new ArrayList<String>();
+		if (objects == null || objects.isEmpty() || StringUtils.isBlank(appid)) {
+			return failed;
+		}
+		long now = Utils.timestamp();
+		List<CompletableFuture<?>> deletes = new ArrayList<CompletableFuture<?>>(objects.size());
+		for (Map<String, Object> data : objects) {
+			deletes.add(deleteStoredAsync(appid, (String) data.get(Config._ID), getLookupValues(data), now));
+		}
+		Map<String, Long> counts = new HashMap<String, Long>();
+		Throwable error = null;
+		for (int i = 0; i < objects.size(); i++) {
+			String id = (String) objects.get(i).get(Config._ID);
+			try {
+				deletes.get(i).join();
+				evictFields(appid, id);
+				countDelete(counts, getStoredType(objects.get(i)));
+			} catch (Exception e) {
+				failed.add(id);
+				error = e.getCause() == null ? e : e.getCause();
+			}
+		}
+		updateCounts(appid, counts);
+		if (error != null) {
+			logger.warn("Failed to delete {} of {} objects from app '{}': {}", failed.size(), objects.size(), appid,
+					error.getMessage());
+		}
+		return failed;
+	}
+
+	private CompletableFuture<AsyncResultSet> deleteStoredAsync(String appid, String id, Map<String, String> lookups,
+			long now) {
+		List<CompletableFuture<AsyncResultSet>> sideWrites = new ArrayList<CompletableFuture<AsyncResultSet>>();
+		if (CassandraUtils.CHUNKING_ENABLED) {
+			sideWrites.add(executeAsync(appid, "DELETE FROM " + CassandraUtils.getChunksTableNameForAppid(appid) +
+					" WHERE id = ?;", id));
+		}
+		if (CassandraUtils.TIERING_ENABLED) {
+			sideWrites.add(executeAsync(appid, "DELETE FROM " + CassandraUtils.getColdTableNameForAppid(appid) +
+					" WHERE id = ?;", id));
+		}
+		for (Map.Entry<String, String> lookup : lookups.entrySet()) {
+			sideWrites.add(executeAsync(appid, "DELETE FROM " + CassandraUtils.getLookupTableNameForAppid(appid) +
+					" WHERE field = ? AND value = ?;", lookup.getKey(), lookup.getValue()));
+		}
+		if (CassandraUtils.CHANGELOG_ENABLED) {
+			sideWrites.add(executeAsync(appid, "INSERT INTO " + CassandraUtils.CHANGELOG_TABLE +
+					" (appid, bucket, ts, id, op) VALUES (?, ?, ?, ?, ?);", appid, now / CHANGELOG_BUCKET_MS, now, id,
+					OP_DELETE));
+		}
+		// prepared here, the main row is deleted in a callback of the driver, where blocking isn't allowed
+		PreparedStatement main = getPreparedStatement(appid, "DELETE FROM " + CassandraUtils.getTableNameForAppid(appid) +
+				" WHERE id = ?;");
+		return CompletableFuture.allOf(sideWrites.toArray(new CompletableFuture<?>[0])).thenCompose(v ->
+				getClient(appid).executeAsync(main.bind(id)).toCompletableFuture());
+	}
+
+	private static CompletableFuture<AsyncResultSet> executeAsync(String appid, String query, Object... values) {
+		return getClient(appid).executeAsync(getPreparedStatement(appid, query).bind(values)).toCompletableFuture();
+	}
+
+	/////////////////////////////////////////////
+	//				RAW JSON FUNCTIONS
+	/////////////////////////////////////////////
+
+	/**
+	 * Reads an object as JSON, without deserializing it into a {@link ParaObject}.
+	 * The stored object is merged with any partial updates at the JSON tree level.
+	 * Like {@link #read(java.lang.String, java.lang.String)}, it falls back to the cold table if tiering is enabled.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param key the object id
+	 * @return the object as a JSON string or null if not found
+	 */
+	public String readJson(String appid, String key) {
+		if (StringUtils.isBlank(key) || StringUtils.isBlank(appid)) {
+			return null;
+		}
+		try {
+			PreparedStatement ps = getPreparedStatement(appid, "SELECT " + COLUMNS + " FROM " +
+					CassandraUtils.getTableNameForAppid(appid) + " WHERE id = ?;");
+			Object[] row = resolveRow(appid, key, getClient(appid).execute(ps.bind(key)).one()).join();
+			if (row != null) {
+				return mergeJson(row);
+			}
+		} catch (Exception e) {
+			logger.error(null, e);
+		}
+		return null;
+	}
+
+	/**
+	 * Reads multiple objects as JSON, without deserializing them into {@link ParaObject}s.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param keys a list of object ids
+	 * @return a map of ids to JSON strings, in the order of the given keys
+	 */
+	public Map<String, String> readAllJson(String appid, List<String> keys) {
+		if (keys == null || keys.isEmpty() || StringUtils.isBlank(appid)) {
+			return new LinkedHashMap<String, String>();
+		}
+		Map<String, String> results = new LinkedHashMap<String, String>(keys.size());
+		List<CompletableFuture<String>> reads = keys.stream().map(key -> readJsonAsync(appid, key)).
+				collect(Collectors.toList());
+		for (int i = 0; i < reads.size(); i++) {
+			try {
+				String json = reads.get(i).join();
+				if (json != null) {
+					results.put(keys.get(i), json);
+				}
+			} catch (Exception e) {
+				logger.error(null, e);
+			}
+		}
+		logger.debug("DAO.readAllJson() {}", results.size());
+		return results;
+	}
+
+	private CompletableFuture<String> readJsonAsync(String appid, String key) {
+		PreparedStatement ps = getPreparedStatement(appid, "SELECT " + COLUMNS + " FROM " +
+				CassandraUtils.getTableNameForAppid(appid) + " WHERE id = ?;");
+		return getClient(appid).executeAsync(ps.bind(key)).toCompletableFuture().
+				thenCompose(rows -> resolveRow(appid, key, rows.one())).
+				thenApply(row -> row == null ? null : mergeJson(row));
+	}
+
+	/**
+	 * Reads a page of objects as JSON, without deserializing them into {@link ParaObject}s.
+	 * Paging works exactly like {@link #readPage(java.lang.String, com.erudika.para.core.utils.Pager)},
+	 * archived objects are included too.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param pager a {@link Pager}
+	 * @return a list of JSON strings
+	 */
+	public List<String> readPageJson(String appid, Pager pager) {
+		List<String> results = new ArrayList<String>();
+		if (StringUtils.isBlank(appid)) {
+			return results;
+		}
+		if (pager == null) {
+			pager = new Pager();
+		}
+		try {
+			for (Object[] row : readPageValues(appid, pager)) {
+				String json = mergeJson(row);
+				if (json != null) {
+					results.add(json);
+				}
+			}
+			if (!results.isEmpty()) {
+				pager.setCount(pager.getCount() + results.size());
+			}
+		} catch (Exception e) {
+			logger.error(null, e);
+		}
+		logger.debug("readPageJson() page: {}, results: {}", pager.getPage(), results.size());
+		return results;
+	}
+
+	/////////////////////////////////////////////
+	//				CHANGELOG FUNCTIONS
+	/////////////////////////////////////////////
+
+	/**
+	 * Reads the changes made to objects in an app since a given time, in the order they were made.
+	 * Requires {@code para.cassandra.changelog_enabled = true}. Each change is a map with the keys
+	 * "appid", "id", "op" (create, update or delete) and "timestamp". The position of the last change
+	 * returned is stored in {@link Pager#getLastKey()}, so the next call continues from there.
+	 * Changes made in the last {@code para.cassandra.changelog_lag_ms} are left for the next call -
+	 * a change record is timestamped before it is written, so it may show up after newer ones.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param since a timestamp in milliseconds - changes older than that are skipped
+	 * @param pager a {@link Pager}
+	 * @return a list of changes
+	 */
+	public List<Map<String, Object>> readChanges(String appid, long since, Pager pager) {
+		List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+		if (StringUtils.isBlank(appid) || !CassandraUtils.CHANGELOG_ENABLED) {
+			return results;
+		}
+		if (pager == null) {
+			pager = new Pager();
+		}
+		long now = Utils.timestamp();
+		long until = now - CHANGELOG_LAG_MS;
+		// changes older than the TTL of the changelog are already gone
+		long lastTs = Math.max(since, now - CassandraUtils.CHANGELOG_TTL * 1000L);
+		String lastId = "";
+		if (!StringUtils.isBlank(pager.getLastKey()) && pager.getLastKey().contains(":")) {
+			lastTs = Math.max(lastTs, NumberUtils.toLong(StringUtils.substringBefore(pager.getLastKey(), ":"), 0));
+			lastId = StringUtils.substringAfter(pager.getLastKey(), ":");
+		}
+		try {
+			PreparedStatement ps = getPreparedStatement(appid, "SELECT ts, id, op FROM " + CassandraUtils.CHANGELOG_TABLE +
+					" WHERE appid = ? AND bucket = ? AND (ts, id) > (?, ?) LIMIT ?;");
+			for (long bucket = lastTs / CHANGELOG_BUCKET_MS; bucket <= until / CHANGELOG_BUCKET_MS &&
+					results.size() < pager.getLimit(); bucket++) {
+				for (Row row : getClient(appid).execute(ps.bind(appid, bucket, lastTs, lastId, pager.getLimit() - results.size()))) {
+					if (row.getLong(0) > until) {
+						break;
+					}
+					Map<String, Object> change = new LinkedHashMap<String, Object>(4);
+					change.put(Config._APPID, appid);
+					change.put(Config._ID, row.getString(1));
+					change.put("op", row.getString(2));
+					change.put(Config._TIMESTAMP, row.getLong(0));
+					results.add(change);
+				}
+			}
+			if (!results.isEmpty()) {
+				Map<String, Object> last = results.get(results.size() - 1);
+				pager.setLastKey(last.get(Config._TIMESTAMP) + ":" + last.get(Config._ID));
+				pager.setCount(pager.getCount() + results.size());
+			}
+		} catch (Exception e) {
+			logger.error(null, e);
+		}
+		logger.debug("readChanges() {} since {}, results: {}", appid, since, results.size());
+		return results;
+	}
+
+	private static void appendChange(StringBuilder batch, List<Object> values, String appid, String id, String op, long now) {
+		if (CassandraUtils.CHANGELOG_ENABLED) {
+			batch.append("INSERT INTO ").append(CassandraUtils.CHANGELOG_TABLE).
+					append(" (appid, bucket, ts, id, op) VALUES (?, ?, ?, ?, ?);");
+			values.add(appid);
+			values.add(now / CHANGELOG_BUCKET_MS);
+			values.add(now);
+			values.add(id);
+			values.add(op);
+		}
+	}
+
+	/////////////////////////////////////////////
+	//				LOOKUP FUNCTIONS
+	/////////////////////////////////////////////
+
+	/**
+	 * Returns the id of the object with a given value of a lookup field, without going through search.
+	 * Requires the field to be listed in {@code para.cassandra.lookup_fields}, e.g. "identifier,email,slug".
+	 * Values are expected to be unique - if two objects have the same value, the one written last is returned.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param field the name of a lookup field
+	 * @param value the value of the field
+	 * @return the object id or null if not found
+	 */
+	public String readIdByField(String appid, String field, String value) {
+		if (StringUtils.isBlank(appid) || StringUtils.isBlank(value) || !CassandraUtils.LOOKUP_FIELDS.contains(field)) {
+			return null;
+		}
+		try {
+			PreparedStatement ps = getPreparedStatement(appid, "SELECT id FROM " +
+					CassandraUtils.getLookupTableNameForAppid(appid) + " WHERE field = ? AND value = ?;");
+			Row row = getClient(appid).execute(ps.bind(field, value)).one();
+			return row == null ? null : row.getString(0);
+		} catch (Exception e) {
+			logger.error(null, e);
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the object with a given value of a lookup field, without going through search.
+	 * The object is only returned if it still has that value.
+	 * @param <P> the type of object
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param field the name of a lookup field, see {@link #readIdByField(String, String, String)}
+	 * @param value the value of the field
+	 * @return the object or null if not found
+	 */
+	public <P extends ParaObject> P readByField(String appid, String field, String value) {
+		String id = readIdByField(appid, field, value);
+		P so = id == null ? null : read(appid, id);
+		if (so != null && value.equals(getLookupValues(ParaObjectUtils.getAnnotatedFields(so, null)).get(field))) {
+			return so;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the values of the lookup fields in an object, skipping empty values and collections.
+	 */
+	static Map<String, String> getLookupValues(Map<String, ?> data) {
+		if (CassandraUtils.LOOKUP_FIELDS.isEmpty() || data == null) {
+			return new HashMap<String, String>(0);
+		}
+		Map<String, String> lookups = new HashMap<String, String>(CassandraUtils.LOOKUP_FIELDS.size());
+		for (String field : CassandraUtils.LOOKUP_FIELDS) {
+			Object value = data.get(field);
+			if (value != null && !(value instanceof Collection) && !(value instanceof Map) &&
+					!StringUtils.isBlank(value.toString())) {
+				lookups.put(field, value.toString());
+			}
+		}
+		return lookups;
+	}
+
+	/**
+	 * Returns a statement which also writes the change record and updates the lookup table, if any lookup values
+	 * have changed, in the same logged batch. The change record is written if and only if the object is.
+	 */
+	private static Statement<?> withSideWrites(String appid, String query, List<Object> values, String id, String op,
+			Map<String, String> oldLookups, Map<String, String> newLookups) {
+		StringBuilder sideWrites = new StringBuilder();
+		List<Object> sideValues = new ArrayList<Object>();
+		appendLookups(sideWrites, sideValues, appid, id, oldLookups, newLookups);
+		appendChange(sideWrites, sideValues, appid, id, op, Utils.timestamp());
+		if (sideWrites.length() == 0) {
+			return getPreparedStatement(appid, query).bind(values.toArray());
+		}
+		List<Object> allValues = new ArrayList<Object>(values);
+		allValues.addAll(sideValues);
+		return getPreparedStatement(appid, "BEGIN BATCH " + query + sideWrites + "APPLY BATCH").bind(allValues.toArray());
+	}
+
+	private static void appendLookups(StringBuilder batch, List<Object> values, String appid, String id,
+			Map<String, String> oldLookups, Map<String, String> newLookups) {
+		for (String field : CassandraUtils.LOOKUP_FIELDS) {
+			String oldValue = oldLookups.get(field);
+			String newValue = newLookups.get(field);
+			if (oldValue != null && !oldValue.equals(newValue)) {
+				batch.append("DELETE FROM ").append(CassandraUtils.getLookupTableNameForAppid(appid)).
+						append(" WHERE field = ? AND value = ?;");
+				values.add(field);
+				values.add(oldValue);
+			}
+			if (newValue != null && !newValue.equals(oldValue)) {
+				batch.append("INSERT INTO ").append(CassandraUtils.getLookupTableNameForAppid(appid)).
+						append(" (field, value, id) VALUES (?, ?, ?);");
+				values.add(field);
+				values.add(newValue);
+				values.add(id);
+			}
+		}
+	}
+
+	private static Map<String, Object> parseJson(String json) {
+		try {
+			return StringUtils.isBlank(json) ? null : JSON_MAP_READER.readValue(json);
+		} catch (IOException e) {
+			logger.warn("Failed to parse object: {}", e.getMessage());
+			return null;
+		}
+	}
+
+	/////////////////////////////////////////////
+	//				COUNT FUNCTIONS
+	/////////////////////////////////////////////
+
+	/**
+	 * Returns the number of objects in an app. Requires {@code para.cassandra.counts_enabled = true}.
+	 * Counts are kept up to date on create and delete. The stored object is read first, so overwriting an object
+	 * or deleting one which doesn't exist leaves the counts as they are. Concurrent writes of the same id may still
+	 * be counted twice, since the read and the write aren't atomic.
+	 * For a count which doesn't depend on that, see {@link CassandraUtils#getApproximateCount(String)}.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param type the type of objects to count, or null to count all objects
+	 * @return the number of objects or -1 if counts are disabled
+	 */
+	public long countObjects(String appid, String type) {
+		if (StringUtils.isBlank(appid) || !CassandraUtils.COUNTS_ENABLED) {
+			return -1;
+		}
+		try {
+			PreparedStatement ps = getPreparedStatement(appid, "SELECT objects FROM " + CassandraUtils.COUNTS_TABLE +
+					" WHERE appid = ? AND type = ?;");
+			Row row = getClient(appid).execute(ps.bind(appid, StringUtils.isBlank(type) ? ALL_TYPES : type)).one();
+			return row == null ? 0 : row.getLong(0);
+		} catch (Exception e) {
+			logger.error(null, e);
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the number of objects of each type in an app. Requires {@code para.cassandra.counts_enabled = true}.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @return a map of types to the number of objects of that type, empty if counts are disabled
+	 */
+	public Map<String, Long> countObjectsByType(String appid) {
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		if (StringUtils.isBlank(appid) || !CassandraUtils.COUNTS_ENABLED) {
+			return counts;
+		}
+		try {
+			PreparedStatement ps = getPreparedStatement(appid, "SELECT type, objects FROM " + CassandraUtils.COUNTS_TABLE +
+					" WHERE appid = ?;");
+			for (Row row : getClient(appid).execute(ps.bind(appid))) {
+				if (!ALL_TYPES.equals(row.getString(0))) {
+					counts.put(row.getString(0), row.getLong(1));
+				}
+			}
+		} catch (Exception e) {
+			logger.error(null, e);
+		}
+		return counts;
+	}
+
+	/**
+	 * Counts a created object. An object which was already stored is replaced, so its old type is counted down.
+	 * @param storedType the type of the stored object, or null if there was none
+	 */
+	private static Map<String, Long> countCreate(Map<String, Long> counts, String storedType, String type) {
+		if (storedType != null) {
+			addCount(counts, storedType, -1);
+		}
+		return addCount(counts, type, 1);
+	}
+
+	/**
+	 * Counts a deleted object, only if it was stored.
+	 * @param storedType the type of the stored object, or null if there was none
+	 */
+	private static Map<String, Long> countDelete(Map<String, Long> counts, String storedType) {
+		return storedType == null ? counts : addCount(counts, storedType, -1);
+	}
+
+	/**
+	 * @return the type of a stored object, an empty string if it has none or null if there is no object
+	 */
+	private static String getStoredType(String json) {
+		return getStoredType(parseJson(json));
+	}
+
+	private static String getStoredType(Map<String, Object> data) {
+		return data == null ? null : Objects.toString(data.get(Config._TYPE), "");
+	}
+
+	private static Map<String, Long> addCount(Map<String, Long> counts, String type, long delta) {
+		counts.merge(ALL_TYPES, delta, Long::sum);
+		if (!StringUtils.isBlank(type)) {
+			counts.merge(type, delta, Long::sum);
+		}
+		return counts;
+	}
+
+	/**
+	 * Counts are updated after the objects were written, so a failure here is only logged - the write itself succeeded.
+	 * This never blocks.
+	 */
+	private CompletableFuture<Void> updateCounts(String appid, Map<String, Long> counts) {
+		if (!CassandraUtils.COUNTS_ENABLED) {
+			return CompletableFuture.completedFuture(null);
+		}
+		try {
+			return CassandraUtils.getPreparedStatementAsync(appid, "UPDATE " + CassandraUtils.COUNTS_TABLE +
+					" SET objects = objects + ? WHERE appid = ? AND type = ?;").thenCompose(ps -> {
+				List<CompletableFuture<?>> updates = new ArrayList<CompletableFuture<?>>(counts.size());
+				for (Map.Entry<String, Long> count : counts.entrySet()) {
+					if (count.getValue() != 0) {
+						updates.add(getClient(appid).executeAsync(ps.bind(count.getValue(), appid, count.getKey())).
+								toCompletableFuture());
+					}
+				}
+				return CompletableFuture.allOf(updates.toArray(new CompletableFuture<?>[0]));
+			}).whenComplete((v, ex) -> {
+				if (ex != null) {
+					logger.warn("Failed to update counts {} in app '{}': {}", counts, appid, ex.getMessage());
+				}
+			});
+		} catch (Exception e) {
+			logger.warn("Failed to update counts {} in app '{}': {}", counts, appid, e.getMessage());
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
 	/////////////////////////////////////////////
 	//				MISC FUNCTIONS
 	/////////////////////////////////////////////
 
+	private AsyncResultSet fetchPage(String appid, int limit, String lastPage) {
+		if (lastPage != null) {
+			Prefetch prefetched = PREFETCHED.remove(prefetchKey(appid, limit, lastPage));
+			if (prefetched != null) {
+				logger.debug("Using prefetched page for app {}.", appid);
+				return prefetched.page.toCompletableFuture().join();
+			}
+		}
+		return executePage(appid, getFetchSize(appid, limit), lastPage).toCompletableFuture().join();
+	}
+
+	/**
+	 * Fetches rows starting at a paging state. The page size of a query can change from one fetch to the next,
+	 * the paging state only depends on the query.
+	 */
+	private CompletionStage<AsyncResultSet> executePage(String appid, int fetchSize, String pagingState) {
+		Statement<?> st = SimpleStatement.newInstance("SELECT " + COLUMNS + " FROM " +
+				CassandraUtils.getTableNameForAppid(appid) + ";").setPageSize(fetchSize);
+		if (pagingState != null) {
+			st = st.setPagingState(PagingState.fromString(pagingState));
+		}
+		return getClient(appid).executeAsync(st);
+	}
+
+	private void prefetchPage(String appid, int limit, String nextPage) {
+		long now = System.currentTimeMillis();
+		// drop pages which were prefetched but never requested, e.g. when a scan was abandoned
+		PREFETCHED.values().removeIf(p -> now - p.created > PREFETCH_TTL_MS);
+		if (PREFETCHED.size() < MAX_PREFETCHED_PAGES) {
+			PREFETCHED.put(prefetchKey(appid, limit, nextPage),
+					new Prefetch(executePage(appid, getFetchSize(appid, limit), nextPage), now));
+		}
+	}
+
+	/**
+	 * Returns the number of rows to fetch at once, so that the size of a response stays within
+	 * {@code para.cassandra.page_budget_kb}, based on the average size of the rows read from an app so far.
+	 * Until rows have been read, a small number of rows is fetched first.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param maxRows the number of rows needed
+	 * @return the fetch size
+	 */
+	int getFetchSize(String appid, int maxRows) {
+		if (PAGE_BUDGET <= 0) {
+			return maxRows;
+		}
+		Double rowSize = ROW_SIZES.get(appid);
+		if (rowSize == null || rowSize <= 0) {
+			return Math.max(1, Math.min(maxRows, INITIAL_FETCH_SIZE));
+		}
+		return (int) Math.max(1, Math.min(maxRows, PAGE_BUDGET / rowSize));
+	}
+
+	/**
+	 * Updates the moving average of the row size of an app. Large objects stored in chunks
+	 * are counted with the size of their chunks, which are fetched separately, but still end up in the page.
+	 */
+	void observeRowSizes(String appid, List<Row> rows) {
+		if (PAGE_BUDGET <= 0 || rows.isEmpty()) {
+			return;
+		}
+		long bytes = 0;
+		for (Row row : rows) {
+			// the sizes are taken from the raw bytes, the rows are only decoded once, when they are deserialized
+			ByteBuffer json = row.getBytesUnsafe(1);
+			ByteBuffer updates = row.getBytesUnsafe(2);
+			if (isChunked(json)) {
+				bytes += (long) getChunks(text(json)) * CHUNK_SIZE;
+			} else {
+				bytes += json == null ? 0 : json.remaining();
+			}
+			bytes += updates == null ? 0 : updates.remaining();
+		}
+		double rowSize = Math.max(1.0, bytes / (double) rows.size());
+		ROW_SIZES.merge(appid, rowSize, (avg, size) -> avg * 0.8 + size * 0.2);
+	}
+
+	private static String prefetchKey(String appid, int limit, String pagingState) {
+		return appid + ":" + limit + ":" + pagingState;
+	}
+
+	private <P extends ParaObject> List<P> fromRows(List<Object[]> rows) {
+		if (rows.size() < PARALLEL_DESERIALIZATION_THRESHOLD || DESERIALIZATION_THREADS < 2) {
+			return deserializeRows(rows);
+		}
+		// split large pages into slices and deserialize them on the worker pool, preserving the order of rows
+		int sliceSize = (rows.size() + DESERIALIZATION_THREADS - 1) / DESERIALIZATION_THREADS;
+		List<CompletableFuture<List<P>>> slices = new ArrayList<CompletableFuture<List<P>>>(DESERIALIZATION_THREADS);
+		for (int i = 0; i < rows.size(); i += sliceSize) {
+			List<Object[]> slice = rows.subList(i, Math.min(i + sliceSize, rows.size()));
+			slices.add(CompletableFuture.supplyAsync(() -> this.<P>deserializeRows(slice), getDeserializationExecutor()));
+		}
+		List<P> objects = new ArrayList<P>(rows.size());
+		for (CompletableFuture<List<P>> slice : slices) {
+			objects.addAll(slice.join());
+		}
+		return objects;
+	}
+
+	private <P extends ParaObject> List<P> deserializeRows(List<Object[]> rows) {
+		List<P> objects = new ArrayList<P>(rows.size());
+		for (Object[] row : rows) {
+			P obj = fromRow(row);
+			if (obj != null) {
+				objects.add(obj);
+			}
+		}
+		return objects;
+	}
+
+	/**
+	 * Converts rows of (id, json, json_updates) to arrays, fetching the chunks of large objects in parallel.
+	 */
+	private List<Object[]> resolveRows(String appid, List<Row> rows) {
+		List<CompletableFuture<Object[]>> resolved = new ArrayList<CompletableFuture<Object[]>>(rows.size());
+		for (Row row : rows) {
+			resolved.add(resolveRow(appid, row));
+		}
+		List<Object[]> results = new ArrayList<Object[]>(rows.size());
+		for (CompletableFuture<Object[]> row : resolved) {
+			Object[] r = row.join();
+			if (r != null) {
+				results.add(r);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Returns the id, json, json_updates and field_updates of a row. The json is kept as the UTF-8 bytes
+	 * received by the driver, which Jackson parses as they are, unless the object is stored in chunks.
+	 */
+	private CompletableFuture<Object[]> resolveRow(String appid, Row row) {
+		ByteBuffer json = row == null ? null : row.getBytesUnsafe(1);
+		if (json == null || !json.hasRemaining()) {
+			return CompletableFuture.completedFuture(null);
+		}
+		Object[] values = new Object[]{row.getString(0), json, row.getString(2), null};
+		if (CassandraUtils.FIELD_UPDATES_ENABLED) {
+			values[3] = fieldUpdatesToJson(row.getMap(3, String.class, String.class));
+		}
+		if (!isChunked(json)) {
+			return CompletableFuture.completedFuture(values);
+		}
+		return resolveJson(appid, (String) values[0], text(json)).thenApply(chunks -> {
+			values[1] = chunks;
+			return values;
+		});
+	}
+
+	/**
+	 * Like {@link #resolveRow(java.lang.String, com.datastax.oss.driver.api.core.cql.Row)}, but falls back to
+	 * the cold table if the object isn't in the main table and tiering is enabled.
+	 */
+	private CompletableFuture<Object[]> resolveRow(String appid, String key, Row row) {
+		if (!CassandraUtils.TIERING_ENABLED) {
+			return resolveRow(appid, row);
+		}
+		return resolveRow(appid, row).thenCompose(values -> {
+			if (values != null) {
+				CassandraTiering.recordHotHit();
+				return CompletableFuture.completedFuture(values);
+			}
+			return CassandraTiering.readCold(appid, key, row).thenApply(cold -> (Object[]) cold);
+		});
+	}
+
+	/**
+	 * Returns the JSON of a row with the columns {@link #COLUMNS}, merged with its updates.
+	 */
+	String toJson(String appid, Row row) {
+		Object[] values = resolveRow(appid, row).join();
+		return values == null ? null : mergeJson(values);
+	}
+
+	/**
+	 * The values in the field_updates map are JSON already, so they are simply joined into a JSON object.
+	 */
+	static String fieldUpdatesToJson(Map<String, String> fields) {
+		if (fields == null || fields.isEmpty()) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder("{");
+		for (Map.Entry<String, String> field : fields.entrySet()) {
+			if (sb.length() > 1) {
+				sb.append(',');
+			}
+			sb.append('"').append(field.getKey()).append("\":").append(field.getValue());
+		}
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * Returns the JSON-serialized fields which differ from the values that were read last.
+	 * If the object wasn't read through this DAO recently, all fields are returned.
+	 */
+	private static Map<String, String> getChangedFields(String appid, String id, Map<String, Object> data)
+			throws JsonProcessingException {
+		Map<String, Object> snapshot = removeSnapshot(appid, id);
+		Map<String, String> changed = new HashMap<String, String>();
+		for (Map.Entry<String, Object> field : data.entrySet()) {
+			String value = ParaObjectUtils.getJsonWriterNoIdent().writeValueAsString(field.getValue());
+			if (snapshot == null || !snapshot.containsKey(field.getKey()) ||
+					!value.equals(ParaObjectUtils.getJsonWriterNoIdent().writeValueAsString(snapshot.get(field.getKey())))) {
+				changed.put(field.getKey(), value);
+			}
+		}
+		if (snapshot != null) {
+			snapshot.putAll(data);
+			snapshotFields(appid, id, snapshot);
+		}
+		return changed;
+	}
+
+	/**
+	 * Keeps the fields of an object which was read. Once there are too many snapshots, or they take up too much memory,
+	 * the oldest ones are evicted - the snapshots of objects which are read again move to the back of the queue.
+	 */
+	private static void snapshotFields(String appid, String id, Map<String, Object> data) {
+		Snapshot snapshot = new Snapshot(appid + "/" + id, data, estimateSize(data));
+		Snapshot old = FIELD_SNAPSHOTS.put(snapshot.key, snapshot);
+		SNAPSHOT_BYTES.addAndGet(snapshot.bytes - (old == null ? 0 : old.bytes));
+		SNAPSHOT_QUEUE.add(snapshot);
+		SNAPSHOT_QUEUE_SIZE.incrementAndGet();
+		// the queue also holds replaced and removed snapshots, which are dropped as they come up
+		while (SNAPSHOT_BYTES.get() > MAX_FIELD_SNAPSHOT_BYTES || FIELD_SNAPSHOTS.size() > MAX_FIELD_SNAPSHOTS ||
+				SNAPSHOT_QUEUE_SIZE.get() > 2 * MAX_FIELD_SNAPSHOTS) {
+			Snapshot eldest = SNAPSHOT_QUEUE.poll();
+			if (eldest == null) {
+				break;
+			}
+			SNAPSHOT_QUEUE_SIZE.decrementAndGet();
+			if (FIELD_SNAPSHOTS.remove(eldest.key, eldest)) {
+				SNAPSHOT_BYTES.addAndGet(-eldest.bytes);
+			}
+		}
+	}
+
+	private static Map<String, Object> getSnapshot(String appid, String id) {
+		Snapshot snapshot = FIELD_SNAPSHOTS.get(appid + "/" + id);
+		return snapshot == null ? null : snapshot.fields;
+	}
+
+	private static Map<String, Object> removeSnapshot(String appid, String id) {
+		Snapshot snapshot = FIELD_SNAPSHOTS.remove(appid + "/" + id);
+		if (snapshot == null) {
+			return null;
+		}
+		SNAPSHOT_BYTES.addAndGet(-snapshot.bytes);
+		return snapshot.fields;
+	}
+
+	/**
+	 * Returns the approximate number of bytes taken up by a value read from JSON.
+	 */
+	static long estimateSize(Object value) {
+		if (value instanceof String) {
+			return 40 + ((String) value).length();
+		} else if (value instanceof Map) {
+			long size = 64;
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				size += 32 + estimateSize(entry.getKey()) + estimateSize(entry.getValue());
+			}
+			return size;
+		} else if (value instanceof Collection) {
+			long size = 32;
+			for (Object item : (Collection<?>) value) {
+				size += 8 + estimateSize(item);
+			}
+			return size;
+		}
+		return 16;
+	}
+
+	/**
+	 * @return the approximate number of bytes taken up by the field snapshots
+	 */
+	static long getSnapshotBytes() {
+		return SNAPSHOT_BYTES.get();
+	}
+
+	/**
+	 * Forgets the fields read last, after the whole object was written or deleted.
+	 * Otherwise the next update would only write the fields which differ from an outdated version.
+	 */
+	private static void evictFields(String appid, String id) {
+		if (SNAPSHOTS_ENABLED && id != null) {
+			removeSnapshot(appid, id);
+		}
+	}
+
+	/**
+	 * Splits large JSON payloads into chunks, stored in a separate table. The returned value is stored
+	 * in the "json" column - either the JSON itself or a reference to its chunks.
+	 */
+	private String storeJson(String appid, String key, String json) {
+		if (!CassandraUtils.CHUNKING_ENABLED || json == null) {
+			return json;
+		}
+		String table = CassandraUtils.getChunksTableNameForAppid(appid);
+		if (json.length() <= CHUNK_THRESHOLD) {
+			// the object may have been stored in chunks before it shrank - the write isn't held up by this, and since
+			// it's sent first, it has an earlier timestamp than any chunks written for the same object later
+			getClient(appid).executeAsync(getPreparedStatement(appid, "DELETE FROM " + table + " WHERE id = ?;").bind(key)).
+					whenComplete((rs, ex) -> {
+						if (ex != null) {
+							logger.warn("Failed to delete the old chunks of object '{}' in app '{}': {}", key, appid,
+									ex.getMessage());
+						}
+					});
+			return json;
+		}
+		PreparedStatement ps = getPreparedStatement(appid, "INSERT INTO " + table + " (id, idx, data) VALUES (?, ?, ?);");
+		List<CompletableFuture<?>> writes = new ArrayList<CompletableFuture<?>>();
+		int chunks = 0;
+		int start = 0;
+		while (start < json.length()) {
+			int end = Math.min(start + CHUNK_SIZE, json.length());
+			if (end < json.length() && Character.isHighSurrogate(json.charAt(end - 1))) {
+				end--; // never split a surrogate pair
+			}
+			writes.add(getClient(appid).executeAsync(ps.bind(key, chunks++, json.substring(start, end))).toCompletableFuture());
+			start = end;
+		}
+		CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).join();
+		// remove leftover chunks from a previous, larger version of the same object
+		getClient(appid).execute(getPreparedStatement(appid, "DELETE FROM " + table + " WHERE id = ? AND idx >= ?;").bind(key, chunks));
+		logger.debug("Stored object {} in {} chunks.", key, chunks);
+		return CHUNKED_PREFIX + chunks;
+	}
+
+	/**
+	 * Returns the JSON stored in the "json" column, reassembling it from its chunks if necessary.
+	 */
+	private CompletableFuture<String> resolveJson(String appid, String key, String json) {
+		int chunks = getChunks(json);
+		if (chunks <= 0) {
+			return CompletableFuture.completedFuture(json);
+		}
+		// this may run in the callback of another request, on a driver thread, so nothing here blocks
+		return CassandraUtils.getPreparedStatementAsync(appid, "SELECT data FROM " +
+				CassandraUtils.getChunksTableNameForAppid(appid) + " WHERE id = ? AND idx = ?;").thenCompose(ps -> {
+			List<CompletableFuture<String>> parts = new ArrayList<CompletableFuture<String>>(chunks);
+			for (int i = 0; i < chunks; i++) {
+				parts.add(getClient(appid).executeAsync(ps.bind(key, i)).thenApply(rs -> {
+					Row r = rs.one();
+					return r == null ? null : r.getString(0);
+				}).toCompletableFuture());
+			}
+			return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+				StringBuilder sb = new StringBuilder(chunks * CHUNK_SIZE);
+				for (CompletableFuture<String> part : parts) {
+					String data = part.join();
+					if (data == null) {
+						logger.warn("Object '{}' is missing some of its {} chunks.", key, chunks);
+						return null;
+					}
+					sb.append(data);
+				}
+				return sb.toString();
+			});
+		});
+	}
+
+	private static ExecutorService getDeserializationExecutor() {
+		if (deserializationExecutor == null) {
+			synchronized (CassandraDAO.class) {
+				if (deserializationExecutor == null) {
+					deserializationExecutor = Executors.newFixedThreadPool(DESERIALIZATION_THREADS, r -> {
+						Thread t = new Thread(r, "cassandra-dao-deserializer");
+						t.setDaemon(true);
+						return t;
+					});
+				}
+			}
+		}
+		return deserializationExecutor;
+	}
+
 	private <P extends ParaObject> String toRow(P so, Class<? extends Annotation> filter) {
 		String row = null;
 		if (so == null) {
@@ -412,20 +1539,109 @@ public class CassandraDAO implements DAO {
 		return row;
 	}
 
-	private <P extends ParaObject> P fromRow(String json, String jsonUpdates) {
-		if (json == null || json.isEmpty()) {
+	private <P extends ParaObject> P fromRow(Object[] row) {
+		Map<String, Object> data = mergeRow(row);
+		return data == null ? null : ParaObjectUtils.<P>setAnnotatedFields(data);
+	}
+
+	/**
+	 * Merges the json of a row returned by {@link #resolveRow(java.lang.String, com.datastax.oss.driver.api.core.cql.Row)}
+	 * with its json_updates and field_updates.
+	 */
+	private Map<String, Object> mergeRow(Object[] row) {
+		Object json = row[1];
+		if (json == null || (json instanceof String && ((String) json).isEmpty())) {
 			logger.debug("row is null or empty");
 			return null;
 		}
 		try {
-			P obj = ParaObjectUtils.fromJSON(json);
-			if (obj != null) {
-				if (jsonUpdates != null) {
-					Map<String, Object> data =  ParaObjectUtils.getJsonReader(Map.class).readValue(jsonUpdates);
-					ParaObjectUtils.setAnnotatedFields(obj, data, null);
+			// merge the stored object and its updates first, then materialize the object only once,
+			// instead of creating it from "json" and reflectively applying each set of updates on top of it
+			Map<String, Object> data = readMap(json);
+			for (int i = 2; i < row.length; i++) {
+				String update = (String) row[i];
+				if (data != null && !StringUtils.isBlank(update)) {
+					Map<String, Object> fields = JSON_MAP_READER.readValue(update);
+					if (fields != null) {
+						data.putAll(fields);
+					}
 				}
-				return obj;
 			}
+			return data;
+		} catch (IOException ex) {
+			logger.error(null, ex);
+		}
+		return null;
+	}
+
+	private static Map<String, Object> readMap(Object json) throws IOException {
+		if (json instanceof ByteBuffer) {
+			ByteBuffer bytes = (ByteBuffer) json;
+			if (bytes.hasArray()) {
+				return JSON_MAP_READER.readValue(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+			}
+			return JSON_MAP_READER.readValue(new ByteBufferBackedInputStream(bytes.duplicate()));
+		}
+		return JSON_MAP_READER.readValue((String) json);
+	}
+
+	/**
+	 * Decodes the json of a row, if it was read as bytes.
+	 */
+	static String text(Object json) {
+		if (json instanceof ByteBuffer) {
+			ByteBuffer bytes = (ByteBuffer) json;
+			if (bytes.hasArray()) {
+				return new String(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining(), StandardCharsets.UTF_8);
+			}
+			return StandardCharsets.UTF_8.decode(bytes.duplicate()).toString();
+		}
+		return (String) json;
+	}
+
+	private static boolean isChunked(ByteBuffer json) {
+		if (json == null || json.remaining() < CHUNKED_PREFIX_BYTES.length) {
+			return false;
+		}
+		for (int i = 0; i < CHUNKED_PREFIX_BYTES.length; i++) {
+			if (json.get(json.position() + i) != CHUNKED_PREFIX_BYTES[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int getChunks(String json) {
+		return (json != null && json.startsWith(CHUNKED_PREFIX)) ?
+				NumberUtils.toInt(json.substring(CHUNKED_PREFIX.length()), 0) : 0;
+	}
+
+	private static String mergeJson(Object[] row) {
+		return mergeJson(text(row[1]), (String) row[2], (String) row[3]);
+	}
+
+	/**
+	 * Merges the partial updates into the stored JSON object, in order. If there are no updates,
+	 * the stored JSON is returned as is, without being parsed.
+	 */
+	static String mergeJson(String json, String... updates) {
+		if (StringUtils.isBlank(json)) {
+			return null;
+		}
+		if (Arrays.stream(updates).allMatch(StringUtils::isBlank)) {
+			return json;
+		}
+		try {
+			JsonNode data = JSON_MAPPER.readTree(json);
+			for (String update : updates) {
+				if (data instanceof ObjectNode && !StringUtils.isBlank(update)) {
+					JsonNode fields = JSON_MAPPER.readTree(update);
+					if (fields instanceof ObjectNode) {
+						((ObjectNode) data).setAll((ObjectNode) fields);
+					}
+				}
+			}
+			return ParaObjectUtils.getJsonWriterNoIdent().writeValueAsString(data);
 		} catch (IOException ex) {
 			logger.error(null, ex);
 		}
@@ -485,4 +1701,32 @@ public class CassandraDAO implements DAO {
 		deleteAll(Para.getConfig().getRootAppIdentifier(), objects);
 	}
 
+	/**
+	 * The fields of an object as they were read last, and their approximate size.
+	 */
+	private static final class Snapshot {
+		private final String key;
+		private final Map<String, Object> fields;
+		private final long bytes;
+
+		Snapshot(String key, Map<String, Object> fields, long bytes) {
+			this.key = key;
+			this.fields = fields;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * A page of results which was requested ahead of time.
+	 */
+	private static final class Prefetch {
+		private final CompletionStage<AsyncResultSet> page;
+		private final long created;
+
+		Prefetch(CompletionStage<AsyncResultSet> page, long created) {
+			this.page = page;
+			this.created = created;
+		}
+	}
+
 }
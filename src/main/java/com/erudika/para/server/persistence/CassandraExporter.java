@@ -0,0 +1,205 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.Row;
+import static com.erudika.para.server.persistence.CassandraUtils.getClient;
+import static com.erudika.para.server.persistence.CassandraUtils.getPreparedStatement;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exports the objects of an app to gzipped NDJSON files (one JSON object per line). The table is scanned
+ * in parallel, one token range at a time, and each range is written to its own file. Only one page of rows
+ * per range is kept in memory. Finished ranges are marked as done, so an interrupted export can be resumed
+ * by calling it again with the same directory. The output can be imported with {@link CassandraBulkLoader}.
+ * Objects archived by {@link CassandraTiering} are exported from the cold table, when tiering is enabled.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public final class CassandraExporter {
+
+	private static final Logger logger = LoggerFactory.getLogger(CassandraExporter.class);
+	private static final int SPLITS = CassandraUtils.getConfigInt("cassandra.export_splits", 64);
+	private static final int THREADS = CassandraUtils.getConfigInt("cassandra.export_threads", 4);
+	private static final int PAGE_SIZE = CassandraUtils.getConfigInt("cassandra.export_page_size", 500);
+	private static final int BUFFER_SIZE = 256 * 1024;
+	private static final int SAMPLE_SIZE = 100;
+
+	private CassandraExporter() { }
+
+	/**
+	 * Exports all objects of an app to a single file "{appid}.ndjson.gz" in the given directory.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param dir the output directory
+	 * @return the number of exported objects
+	 * @throws IOException if the files can't be written
+	 */
+	public static long exportTable(String appid, Path dir) throws IOException {
+		return exportTable(appid, dir, true);
+	}
+
+	/**
+	 * Exports all objects of an app to gzipped NDJSON files, one file per token range
+	 * named "{appid}-{range}.ndjson.gz", or a single combined file "{appid}.ndjson.gz".
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param dir the output directory
+	 * @param combine if true, the files of all ranges are combined into one file
+	 * @return the number of objects exported in this run (ranges finished by an earlier run aren't counted)
+	 * @throws IOException if the files can't be written
+	 */
+	public static long exportTable(String appid, Path dir, boolean combine) throws IOException {
+		if (StringUtils.isBlank(appid) || dir == null) {
+			return 0;
+		}
+		Files.createDirectories(dir);
+		CassandraDAO dao = new CassandraDAO();
+		AtomicLong exported = new AtomicLong();
+		List<long[]> ranges = CassandraUtils.getTokenRanges(SPLITS);
+		List<CompletableFuture<Void>> tasks = new ArrayList<CompletableFuture<Void>>(ranges.size());
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, THREADS));
+		long started = System.currentTimeMillis();
+		try {
+			for (int i = 0; i < ranges.size(); i++) {
+				int range = i;
+				tasks.add(CompletableFuture.runAsync(() -> exportRange(dao, appid, dir, range, ranges.get(range), exported), executor));
+			}
+			CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+		} finally {
+			executor.shutdown();
+		}
+		if (combine) {
+			combineFiles(appid, dir, ranges.size());
+		}
+		logger.info("Exported {} objects from app '{}' to {} in {}s.", exported.get(), appid, dir,
+				(System.currentTimeMillis() - started) / 1000);
+		return exported.get();
+	}
+
+	private static void exportRange(CassandraDAO dao, String appid, Path dir, int range, long[] tokens, AtomicLong exported) {
+		Path done = dir.resolve(appid + "-" + range + ".done");
+		if (Files.exists(done)) {
+			logger.debug("Range {} of app '{}' was already exported, skipping.", range, appid);
+			return;
+		}
+		Path part = dir.resolve(appid + "-" + range + ".ndjson.gz.part");
+		PreparedStatement ps = getPreparedStatement(appid, "SELECT " + CassandraDAO.COLUMNS + " FROM " +
+				CassandraUtils.getTableNameForAppid(appid) + " WHERE token(id) > ? AND token(id) <= ?;");
+		long count = 0;
+		try (Writer out = newWriter(part)) {
+			// the page size is kept within the byte budget for the sizes of rows exported so far
+			for (Row row : getClient(appid).execute(ps.bind(tokens[0], tokens[1]).
+					setPageSize(dao.getFetchSize(appid, PAGE_SIZE)))) {
+				if (count < SAMPLE_SIZE) {
+					dao.observeRowSizes(appid, Collections.singletonList(row));
+				}
+				String json = dao.toJson(appid, row);
+				if (json != null) {
+					out.write(json);
+					out.write('\n');
+					count++;
+				}
+			}
+			if (CassandraUtils.TIERING_ENABLED) {
+				count += exportColdRange(appid, tokens, out);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		try {
+			Files.move(part, getRangeFile(dir, appid, range), StandardCopyOption.REPLACE_EXISTING);
+			Files.createFile(done);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		exported.addAndGet(count);
+		logger.debug("Exported {} objects from range {} of app '{}'.", count, range, appid);
+	}
+
+	/**
+	 * Archived objects are exported from the cold table, merged with the updates written to the main table since.
+	 * The token ranges of both tables are the same, so they go into the same file. Objects which are
+	 * in the main table too were exported with it already.
+	 */
+	private static long exportColdRange(String appid, long[] tokens, Writer out) throws IOException {
+		PreparedStatement scan = getPreparedStatement(appid, "SELECT id, json FROM " +
+				CassandraUtils.getColdTableNameForAppid(appid) + " WHERE token(id) > ? AND token(id) <= ?;");
+		PreparedStatement hot = getPreparedStatement(appid, "SELECT " + CassandraDAO.COLUMNS + " FROM " +
+				CassandraUtils.getTableNameForAppid(appid) + " WHERE id = ?;");
+		long count = 0;
+		for (Row cold : getClient(appid).execute(scan.bind(tokens[0], tokens[1]).setPageSize(PAGE_SIZE))) {
+			Row row = getClient(appid).execute(hot.bind(cold.getString(0))).one();
+			if (row != null && !StringUtils.isBlank(row.getString(1))) {
+				continue;
+			}
+			String json = CassandraDAO.mergeJson(cold.getString(1), row == null ? null : row.getString(2),
+					CassandraTiering.getFieldUpdates(row));
+			if (json != null) {
+				out.write(json);
+				out.write('\n');
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Concatenated gzip streams are a valid gzip file, so range files are simply appended to each other.
+	 */
+	private static void combineFiles(String appid, Path dir, int ranges) throws IOException {
+		Path combined = dir.resolve(appid + ".ndjson.gz");
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(combined), BUFFER_SIZE)) {
+			for (int i = 0; i < ranges; i++) {
+				Files.copy(getRangeFile(dir, appid, i), out);
+			}
+		}
+		for (int i = 0; i < ranges; i++) {
+			Files.deleteIfExists(getRangeFile(dir, appid, i));
+			Files.deleteIfExists(dir.resolve(appid + "-" + i + ".done"));
+		}
+	}
+
+	private static Path getRangeFile(Path dir, String appid, int range) {
+		return dir.resolve(appid + "-" + range + ".ndjson.gz");
+	}
+
+	private static Writer newWriter(Path file) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE)), StandardCharsets.UTF_8), BUFFER_SIZE);
+	}
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.erudika.para.core.utils.Config;
+import com.erudika.para.core.utils.ParaObjectUtils;
+import static com.erudika.para.server.persistence.CassandraUtils.getClient;
+import static com.erudika.para.server.persistence.CassandraUtils.getPreparedStatement;
+import com.fasterxml.jackson.databind.ObjectReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes the objects of one type which were created before a given time, in the background. The table is scanned
+ * in parallel, one token range at a time, and objects are deleted in small groups through
+ * {@link CassandraDAO#deleteStored(java.lang.String, java.util.List)}, so counts, chunks and the changelog are updated too.
+ * Each object is deleted with single-partition requests, sent at once, rather than in a logged batch.
+ * <br>
+ * Deletes are rate limited, starting at {@code para.cassandra.purge_rate} objects per second. The rate is halved
+ * whenever a batch takes longer than {@code para.cassandra.purge_target_latency_ms} or fails, and increased slowly
+ * while the cluster keeps up, so that live traffic isn't slowed down and tombstones are spread out over time.
+ * Finished ranges are saved to a checkpoint file and an interrupted purge resumes where it stopped.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public final class CassandraPurger {
+
+	private static final Logger logger = LoggerFactory.getLogger(CassandraPurger.class);
+	private static final ObjectReader JSON_MAP_READER = ParaObjectUtils.getJsonReader(Map.class);
+	private static final int SPLITS = CassandraUtils.getConfigInt("cassandra.purge_splits", 64);
+	private static final int THREADS = CassandraUtils.getConfigInt("cassandra.purge_threads", 2);
+	private static final int PAGE_SIZE = CassandraUtils.getConfigInt("cassandra.purge_page_size", 500);
+	private static final int BATCH_SIZE = CassandraUtils.getConfigInt("cassandra.purge_batch_size", 50);
+	private static final int RATE = CassandraUtils.getConfigInt("cassandra.purge_rate", 500);
+	private static final int MAX_RATE = CassandraUtils.getConfigInt("cassandra.purge_max_rate", 5000);
+	private static final int MIN_RATE = 10;
+	private static final long TARGET_LATENCY_MS = CassandraUtils.getConfigInt("cassandra.purge_target_latency_ms", 50);
+	private static final long LOG_INTERVAL_MS = 30000;
+
+	private static final Map<String, Progress> RUNNING = new ConcurrentHashMap<String, Progress>();
+
+	private CassandraPurger() { }
+
+	/**
+	 * Deletes all objects of a type created before a given time. The checkpoint is saved in the temp directory,
+	 * in a file named "{appid}-{type}.purge".
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param type the type of objects to delete
+	 * @param createdBefore a timestamp in milliseconds, objects created before it are deleted
+	 * @return the number of deleted objects
+	 */
+	public static long purge(String appid, String type, long createdBefore) {
+		return purge(appid, type, createdBefore, StringUtils.isBlank(appid) || StringUtils.isBlank(type) ? null :
+				Paths.get(System.getProperty("java.io.tmpdir"), appid + "-" + type + ".purge"));
+	}
+
+	/**
+	 * Deletes all objects of a type created before a given time.
+	 * A checkpoint saved by a purge with a different type or time is ignored.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param type the type of objects to delete
+	 * @param createdBefore a timestamp in milliseconds, objects created before it are deleted
+	 * @param checkpoint a file where finished ranges are saved, deleted when the purge completes
+	 * @return the number of objects deleted in this run (objects deleted by an earlier run aren't counted)
+	 */
+	public static long purge(String appid, String type, long createdBefore, Path checkpoint) {
+		if (StringUtils.isBlank(appid) || StringUtils.isBlank(type) || checkpoint == null) {
+			return 0;
+		}
+		List<long[]> ranges = CassandraUtils.getTokenRanges(SPLITS);
+		Progress progress = new Progress(ranges.size());
+		if (RUNNING.putIfAbsent(appid + ":" + type, progress) != null) {
+			logger.warn("Objects of type '{}' in app '{}' are already being purged.", type, appid);
+			return 0;
+		}
+		Set<Integer> done;
+		try {
+			done = readCheckpoint(checkpoint, type + " " + createdBefore + " " + SPLITS);
+		} catch (RuntimeException e) {
+			RUNNING.remove(appid + ":" + type);
+			throw e;
+		}
+		progress.rangesDone.set(done.size());
+		CassandraDAO dao = new CassandraDAO();
+		List<CompletableFuture<Void>> tasks = new ArrayList<CompletableFuture<Void>>(ranges.size());
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, THREADS));
+		logger.info("Purging objects of type '{}' created before {} from app '{}', {} of {} ranges done...",
+				type, createdBefore, appid, done.size(), ranges.size());
+		try {
+			for (int i = 0; i < ranges.size(); i++) {
+				if (!done.contains(i)) {
+					int range = i;
+					tasks.add(CompletableFuture.runAsync(() -> {
+						purgeRange(dao, appid, type, createdBefore, ranges.get(range), progress);
+						saveRange(checkpoint, range);
+						progress.rangesDone.incrementAndGet();
+					}, executor));
+				}
+			}
+			CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+			Files.deleteIfExists(checkpoint);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			executor.shutdown();
+			RUNNING.remove(appid + ":" + type);
+		}
+		progress.log(appid, type);
+		return progress.purged.get();
+	}
+
+	/**
+	 * Returns the progress of a running purge.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param type the type of objects being deleted
+	 * @return a map of counters - "scanned", "purged", "failed", "ranges_done", "ranges_total" and "rate"
+	 * (the current limit in objects per second), or an empty map if no such purge is running
+	 */
+	public static Map<String, Long> getProgress(String appid, String type) {
+		Progress progress = RUNNING.get(appid + ":" + type);
+		return progress == null ? Collections.emptyMap() : progress.toMap();
+	}
+
+	private static void purgeRange(CassandraDAO dao, String appid, String type, long createdBefore, long[] tokens,
+			Progress progress) {
+		List<Map<String, Object>> batch = new ArrayList<Map<String, Object>>(BATCH_SIZE);
+		PreparedStatement ps = getPreparedStatement(appid, "SELECT " + CassandraDAO.COLUMNS + " FROM " +
+				CassandraUtils.getTableNameForAppid(appid) + " WHERE token(id) > ? AND token(id) <= ?;");
+		for (Row row : getClient(appid).execute(ps.bind(tokens[0], tokens[1]).setPageSize(PAGE_SIZE))) {
+			collect(dao.toJson(appid, row), type, createdBefore, batch, progress);
+			deleteIfFull(dao, appid, batch, progress, BATCH_SIZE);
+		}
+		if (CassandraUtils.TIERING_ENABLED) {
+			// old objects are likely to have been archived
+			PreparedStatement cold = getPreparedStatement(appid, "SELECT id, json FROM " +
+					CassandraUtils.getColdTableNameForAppid(appid) + " WHERE token(id) > ? AND token(id) <= ?;");
+			for (Row row : getClient(appid).execute(cold.bind(tokens[0], tokens[1]).setPageSize(PAGE_SIZE))) {
+				collect(row.getString(1), type, createdBefore, batch, progress);
+				deleteIfFull(dao, appid, batch, progress, BATCH_SIZE);
+			}
+		}
+		deleteIfFull(dao, appid, batch, progress, 1);
+	}
+
+	private static void collect(String json, String type, long createdBefore, List<Map<String, Object>> batch,
+			Progress progress) {
+		if (json == null) {
+			return;
+		}
+		progress.scanned.incrementAndGet();
+		try {
+			Map<String, Object> data = JSON_MAP_READER.readValue(json);
+			long timestamp = NumberUtils.toLong(String.valueOf(data.get(Config._TIMESTAMP)), 0);
+			if (type.equals(data.get(Config._TYPE)) && timestamp > 0 && timestamp < createdBefore &&
+					data.get(Config._ID) instanceof String) {
+				batch.add(data);
+			}
+		} catch (Exception e) {
+			logger.warn("Failed to read object '{}': {}", StringUtils.abbreviate(json, 100), e.getMessage());
+		}
+	}
+
+	private static void deleteIfFull(CassandraDAO dao, String appid, List<Map<String, Object>> batch, Progress progress,
+			int size) {
+		if (batch.isEmpty() || batch.size() < size) {
+			return;
+		}
+		progress.limiter.acquire(batch.size());
+		long start = System.nanoTime();
+		// failures are logged by the DAO, the failed objects are still there and a later purge deletes them
+		int failed = dao.deleteStored(appid, batch).size();
+		progress.limiter.update(failed > 0 ? Long.MAX_VALUE : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		progress.purged.addAndGet(batch.size() - failed);
+		progress.failed.addAndGet(failed);
+		batch.clear();
+		progress.logPeriodically(appid);
+	}
+
+	private static Set<Integer> readCheckpoint(Path checkpoint, String header) {
+		Set<Integer> done = new HashSet<Integer>();
+		try {
+			if (Files.isReadable(checkpoint)) {
+				List<String> lines = Files.readAllLines(checkpoint, StandardCharsets.UTF_8);
+				if (!lines.isEmpty() && lines.get(0).equals(header)) {
+					lines.stream().skip(1).filter(NumberUtils::isDigits).forEach(l -> done.add(NumberUtils.toInt(l)));
+					return done;
+				}
+			}
+			Files.writeString(checkpoint, header + "\n", StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return done;
+	}
+
+	private static synchronized void saveRange(Path checkpoint, int range) {
+		try {
+			Files.writeString(checkpoint, range + "\n", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Limits the number of deletes per second, adjusting the limit to the latency of deletes.
+	 * The limit grows by 10% after each fast batch and is halved after each slow or failed one.
+	 */
+	static final class RateLimiter {
+		private double rate = Math.max(MIN_RATE, RATE);
+		private long next = System.nanoTime();
+
+		void acquire(int permits) {
+			long wait;
+			synchronized (this) {
+				long now = System.nanoTime();
+				next = Math.max(next, now) + (long) (permits * 1000000000.0 / rate);
+				wait = next - now;
+			}
+			if (wait > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		synchronized void update(long latencyMs) {
+			if (latencyMs > TARGET_LATENCY_MS) {
+				rate = Math.max(MIN_RATE, rate / 2);
+			} else {
+				rate = Math.min(Math.max(MIN_RATE, MAX_RATE), rate * 1.1);
+			}
+		}
+
+		synchronized long getRate() {
+			return Math.round(rate);
+		}
+	}
+
+	/**
+	 * Purge progress counters.
+	 */
+	private static final class Progress {
+		private final RateLimiter limiter = new RateLimiter();
+		private final AtomicLong scanned = new AtomicLong();
+		private final AtomicLong purged = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+		private final AtomicLong rangesDone = new AtomicLong();
+		private final int rangesTotal;
+		private final long started = System.currentTimeMillis();
+		private final AtomicLong lastLog = new AtomicLong(started);
+
+		Progress(int rangesTotal) {
+			this.rangesTotal = rangesTotal;
+		}
+
+		void logPeriodically(String appid) {
+			long last = lastLog.get();
+			long now = System.currentTimeMillis();
+			if (now - last >= LOG_INTERVAL_MS && lastLog.compareAndSet(last, now)) {
+				logger.info("Purge of app '{}': {}", appid, toMap());
+			}
+		}
+
+		void log(String appid, String type) {
+			logger.info("Purged {} objects of type '{}' from app '{}' ({} failed, {} scanned) in {}s.", purged.get(),
+					type, appid, failed.get(), scanned.get(), (System.currentTimeMillis() - started) / 1000);
+		}
+
+		Map<String, Long> toMap() {
+			Map<String, Long> map = new LinkedHashMap<String, Long>();
+			map.put("scanned", scanned.get());
+			map.put("purged", purged.get());
+			map.put("failed", failed.get());
+			map.put("ranges_done", rangesDone.get());
+			map.put("ranges_total", (long) rangesTotal);
+			map.put("rate", limiter.getRate());
+			return map;
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.datastax.oss.driver.api.core.CqlIdentifier;
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.ProtocolVersion;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import com.datastax.oss.driver.api.core.metadata.TokenMap;
+import com.datastax.oss.driver.api.core.type.codec.TypeCodecs;
+import static com.erudika.para.server.persistence.CassandraUtils.getClient;
+import static com.erudika.para.server.persistence.CassandraUtils.getPreparedStatement;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects concurrent single-key reads from the same app and reads them with one query. Reads wait at most
+ * {@code para.cassandra.read_batch_window_us} microseconds for other reads to join them, or until
+ * {@code para.cassandra.read_batch_max_keys} keys are collected. Keys are grouped by their replicas, so that each
+ * query is sent to a node which owns all of its keys, and each caller gets its own row back.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class CassandraReadBatcher {
+
+	private static final long WINDOW_MICROS = CassandraUtils.getConfigInt("cassandra.read_batch_window_us", 200);
+	private static final int MAX_KEYS = CassandraUtils.getConfigInt("cassandra.read_batch_max_keys", 64);
+
+	private final Map<String, Batch> pending = new ConcurrentHashMap<String, Batch>();
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "cassandra-read-batcher");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * Reads a row, together with other reads from the same app.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param key the object id
+	 * @return the row or null if it doesn't exist
+	 */
+	CompletableFuture<Row> read(String appid, String key) {
+		CompletableFuture<Row> future = new CompletableFuture<Row>();
+		Batch[] full = new Batch[1];
+		Batch[] started = new Batch[1];
+		pending.compute(appid, (k, batch) -> {
+			Batch b = batch;
+			if (b == null) {
+				b = new Batch();
+				started[0] = b;
+			}
+			b.reads.computeIfAbsent(key, id -> new ArrayList<CompletableFuture<Row>>(1)).add(future);
+			if (b.reads.size() >= MAX_KEYS) {
+				full[0] = b;
+				return null;
+			}
+			return b;
+		});
+		if (full[0] != null) {
+			flush(appid, full[0]);
+		} else if (started[0] != null) {
+			Batch b = started[0];
+			scheduler.schedule(() -> {
+				// the batch may have been flushed already, after it got full
+				if (pending.remove(appid, b)) {
+					flush(appid, b);
+				}
+			}, WINDOW_MICROS, TimeUnit.MICROSECONDS);
+		}
+		return future;
+	}
+
+	/**
+	 * If the query can't even be sent, e.g. because the cluster is unavailable, all reads in the batch fail with that error.
+	 */
+	private void flush(String appid, Batch batch) {
+		try {
+			PreparedStatement ps = getPreparedStatement(appid, "SELECT " + CassandraDAO.COLUMNS + " FROM " +
+					CassandraUtils.getTableNameForAppid(appid) + " WHERE id IN ?;");
+			for (List<String> keys : groupByReplicas(getClient(appid), batch.reads.keySet())) {
+				ByteBuffer routingKey = TypeCodecs.TEXT.encode(keys.get(0), ProtocolVersion.DEFAULT);
+				CompletionStage<AsyncResultSet> rs = getClient(appid).executeAsync(ps.bind(keys).setRoutingKey(routingKey));
+				rs.whenComplete((rows, ex) -> {
+					if (ex != null) {
+						for (String key : keys) {
+							batch.reads.get(key).forEach(f -> f.completeExceptionally(ex));
+						}
+					} else {
+						Map<String, Row> found = new HashMap<String, Row>(keys.size());
+						rows.currentPage().forEach(row -> found.put(row.getString(0), row));
+						for (String key : keys) {
+							batch.reads.get(key).forEach(f -> f.complete(found.get(key)));
+						}
+					}
+				});
+			}
+		} catch (Exception e) {
+			// reads of groups which were already sent are completed by their queries, this does nothing to them
+			batch.reads.values().forEach(futures -> futures.forEach(f -> f.completeExceptionally(e)));
+		}
+	}
+
+	/**
+	 * Groups keys which are stored on the same replicas. If the token map isn't available,
+	 * e.g. when schema metadata is disabled, all keys are read with one query.
+	 */
+	private static List<List<String>> groupByReplicas(CqlSession session, Set<String> keys) {
+		try {
+			Optional<TokenMap> tokenMap = session.getMetadata().getTokenMap();
+			Optional<CqlIdentifier> keyspace = session.getKeyspace();
+			if (tokenMap.isPresent() && keyspace.isPresent() && keys.size() > 1) {
+				Map<Set<Node>, List<String>> groups = new LinkedHashMap<Set<Node>, List<String>>();
+				for (String key : keys) {
+					Set<Node> replicas = tokenMap.get().getReplicas(keyspace.get(),
+							TypeCodecs.TEXT.encode(key, ProtocolVersion.DEFAULT));
+					groups.computeIfAbsent(replicas, r -> new ArrayList<String>()).add(key);
+				}
+				return new ArrayList<List<String>>(groups.values());
+			}
+		} catch (Exception e) {
+			// no metadata, fall back to a single query
+		}
+		return Collections.singletonList(new ArrayList<String>(keys));
+	}
+
+	/**
+	 * Reads waiting to be sent, by key. The map is only modified before the batch is flushed.
+	 */
+	private static final class Batch {
+		private final Map<String, List<CompletableFuture<Row>>> reads = new LinkedHashMap<String, List<CompletableFuture<Row>>>();
+	}
+}
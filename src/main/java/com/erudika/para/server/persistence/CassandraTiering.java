@@ -0,0 +1,272 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.erudika.para.core.utils.Config;
+import com.erudika.para.core.utils.ParaObjectUtils;
+import static com.erudika.para.server.persistence.CassandraUtils.getClient;
+import static com.erudika.para.server.persistence.CassandraUtils.getPreparedStatement;
+import com.fasterxml.jackson.databind.ObjectReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves objects which haven't been updated for a while from the main table of an app into its cold table
+ * ({@link CassandraUtils#getColdTableNameForAppid(java.lang.String)}), which is heavily compressed and
+ * compacted less often. Reads of objects missing from the main table fall back to the cold table
+ * and page scans continue in the cold table after the main table.
+ * <br>
+ * The maximum age is set with {@code para.cassandra.tiering_max_age_days} and can be overridden per type with
+ * {@code para.cassandra.tiering_type_max_age_days = "user:0,tag:30"}, where 0 means never archive.
+ * An object which is updated after it was archived is moved back to the main table by the next run.
+ * Objects stored in chunks and objects with pending field updates are kept in the main table.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public final class CassandraTiering {
+
+	private static final Logger logger = LoggerFactory.getLogger(CassandraTiering.class);
+	private static final ObjectReader JSON_MAP_READER = ParaObjectUtils.getJsonReader(Map.class);
+	private static final int SPLITS = CassandraUtils.getConfigInt("cassandra.tiering_splits", 64);
+	private static final int THREADS = CassandraUtils.getConfigInt("cassandra.tiering_threads", 2);
+	private static final int PAGE_SIZE = CassandraUtils.getConfigInt("cassandra.tiering_page_size", 500);
+	private static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(CassandraUtils.
+			getConfigInt("cassandra.tiering_max_age_days", 365));
+	private static final Map<String, Long> TYPE_MAX_AGES = getTypeMaxAges(CassandraUtils.
+			getConfigParam("cassandra.tiering_type_max_age_days", ""));
+
+	private static final AtomicLong HOT_HITS = new AtomicLong();
+	private static final AtomicLong COLD_HITS = new AtomicLong();
+	private static final AtomicLong MISSES = new AtomicLong();
+
+	private CassandraTiering() { }
+
+	/**
+	 * Moves the objects of an app which are older than the maximum age for their type into the cold table,
+	 * and moves archived objects which were updated since back into the main table.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @return the number of objects moved into the cold table
+	 */
+	public static long archive(String appid) {
+		if (StringUtils.isBlank(appid) || !CassandraUtils.TIERING_ENABLED) {
+			return 0;
+		}
+		AtomicLong archived = new AtomicLong();
+		AtomicLong restored = new AtomicLong();
+		long now = System.currentTimeMillis();
+		List<long[]> ranges = CassandraUtils.getTokenRanges(SPLITS);
+		List<CompletableFuture<Void>> tasks = new ArrayList<CompletableFuture<Void>>(ranges.size());
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, THREADS));
+		try {
+			for (long[] range : ranges) {
+				tasks.add(CompletableFuture.runAsync(() -> archiveRange(appid, range, now, archived, restored), executor));
+			}
+			CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+		} finally {
+			executor.shutdown();
+		}
+		logger.info("Moved {} objects of app '{}' to the cold table and {} objects back in {}s.", archived.get(), appid,
+				restored.get(), (System.currentTimeMillis() - now) / 1000);
+		return archived.get();
+	}
+
+	/**
+	 * Returns the share of object reads which were served by the main table alone, since startup.
+	 * A low ratio means that the maximum age is too short for the way objects are read.
+	 * Reads of missing objects count as misses, because they are looked up in the cold table too.
+	 * @return a ratio between 0 and 1, or 1 if there were no reads
+	 */
+	public static double getHotTierHitRatio() {
+		long hot = HOT_HITS.get();
+		long total = hot + COLD_HITS.get() + MISSES.get();
+		return total == 0 ? 1.0 : (double) hot / total;
+	}
+
+	static void recordHotHit() {
+		HOT_HITS.incrementAndGet();
+	}
+
+	/**
+	 * Reads an object from the cold table, merged with any updates made to it in the main table since it was archived.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param key the object id
+	 * @param hot the row from the main table, if any, with the columns {@link CassandraDAO#COLUMNS}
+	 * @return the row as (id, json, json_updates, field_updates) or null if not found
+	 */
+	static CompletableFuture<String[]> readCold(String appid, String key, Row hot) {
+		// called in the callback of the read from the main table, on a driver thread, so nothing here blocks
+		return CassandraUtils.getPreparedStatementAsync(appid, "SELECT json FROM " +
+				CassandraUtils.getColdTableNameForAppid(appid) + " WHERE id = ?;").
+				thenCompose(ps -> getClient(appid).executeAsync(ps.bind(key))).thenApply(rs -> {
+			Row cold = rs.one();
+			if (cold == null || StringUtils.isBlank(cold.getString(0))) {
+				MISSES.incrementAndGet();
+				return null;
+			}
+			COLD_HITS.incrementAndGet();
+			return new String[]{key, cold.getString(0), hot == null ? null : hot.getString(2), getFieldUpdates(hot)};
+		});
+	}
+
+	/**
+	 * Merges an archived object with any updates made to it in the main table since it was archived.
+	 * This is the reverse of {@link #readCold(java.lang.String, java.lang.String, com.datastax.oss.driver.api.core.cql.Row)},
+	 * for scans of the cold table.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param key the object id
+	 * @param json the archived object
+	 * @return the row as (id, json, json_updates, field_updates) or null if the object is back in the main table
+	 */
+	static CompletableFuture<String[]> readHot(String appid, String key, String json) {
+		if (StringUtils.isBlank(json)) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return CassandraUtils.getPreparedStatementAsync(appid, "SELECT " + CassandraDAO.COLUMNS + " FROM " +
+				CassandraUtils.getTableNameForAppid(appid) + " WHERE id = ?;").
+				thenCompose(ps -> getClient(appid).executeAsync(ps.bind(key))).thenApply(rs -> {
+			Row hot = rs.one();
+			if (hot != null && !StringUtils.isBlank(hot.getString(1))) {
+				// restored, but not yet deleted from the cold table - the main table has the whole object
+				return null;
+			}
+			return new String[]{key, json, hot == null ? null : hot.getString(2), getFieldUpdates(hot)};
+		});
+	}
+
+	private static void archiveRange(String appid, long[] tokens, long now, AtomicLong archived, AtomicLong restored) {
+		String table = CassandraUtils.getTableNameForAppid(appid);
+		PreparedStatement scan = getPreparedStatement(appid, "SELECT " + CassandraDAO.COLUMNS +
+				", writetime(json), writetime(json_updates) FROM " + table + " WHERE token(id) > ? AND token(id) <= ?;");
+		for (Row row : getClient(appid).execute(scan.bind(tokens[0], tokens[1]).setPageSize(PAGE_SIZE))) {
+			try {
+				String id = row.getString(0);
+				String json = row.getString(1);
+				if (StringUtils.isBlank(json)) {
+					// only updates were written to the main table, after the object was archived
+					if (restore(appid, id, row)) {
+						restored.incrementAndGet();
+					}
+				} else if (!json.startsWith(CassandraDAO.CHUNKED_PREFIX) && getFieldUpdates(row) == null) {
+					String merged = CassandraDAO.mergeJson(json, row.getString(2));
+					if (isExpired(merged, now)) {
+						moveToCold(appid, id, merged, row);
+						archived.incrementAndGet();
+					}
+				}
+			} catch (Exception e) {
+				logger.error("Failed to move object '{}' of app '{}' between tiers: {}", row.getString(0), appid,
+						e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * The object is deleted from the main table with the timestamp of the cells which were read,
+	 * so updates written in the meantime are kept and merged with the archived object on read.
+	 */
+	private static void moveToCold(String appid, String id, String json, Row row) {
+		getClient(appid).execute(getPreparedStatement(appid, "INSERT INTO " +
+				CassandraUtils.getColdTableNameForAppid(appid) + " (id, json) VALUES (?, ?);").bind(id, json));
+		long writetime = Math.max(getWritetime(row, 0), getWritetime(row, 1));
+		getClient(appid).execute(getPreparedStatement(appid, "DELETE FROM " +
+				CassandraUtils.getTableNameForAppid(appid) + " USING TIMESTAMP ? WHERE id = ?;").bind(writetime, id));
+	}
+
+	/**
+	 * The object is written with the timestamp of the updates which were read, so it doesn't overwrite
+	 * updates written in the meantime.
+	 */
+	private static boolean restore(String appid, String id, Row row) {
+		Row cold = getClient(appid).execute(getPreparedStatement(appid, "SELECT json FROM " +
+				CassandraUtils.getColdTableNameForAppid(appid) + " WHERE id = ?;").bind(id)).one();
+		if (cold == null || StringUtils.isBlank(cold.getString(0))) {
+			return false;
+		}
+		String fieldUpdates = getFieldUpdates(row);
+		String json = CassandraDAO.mergeJson(cold.getString(0), row.getString(2), fieldUpdates);
+		long timestamp = getRestoreTimestamp(Math.max(getWritetime(row, 0), getWritetime(row, 1)), fieldUpdates,
+				TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()));
+		getClient(appid).execute(getPreparedStatement(appid, "INSERT INTO " + CassandraUtils.getTableNameForAppid(appid) +
+				(CassandraUtils.FIELD_UPDATES_ENABLED ? " (id, json, json_updates, field_updates) VALUES (?, ?, NULL, NULL)" :
+				" (id, json, json_updates) VALUES (?, ?, NULL)") + " USING TIMESTAMP ?;").bind(id, json, timestamp));
+		getClient(appid).execute(getPreparedStatement(appid, "DELETE FROM " +
+				CassandraUtils.getColdTableNameForAppid(appid) + " WHERE id = ?;").bind(id));
+		return true;
+	}
+
+	/**
+	 * Returns the timestamp for writing a restored object, in microseconds. The write time of field_updates
+	 * can't be selected, because it is a non-frozen map, so the current time is used if there are field updates,
+	 * like it is when nothing was written since the object was archived.
+	 * @param writetime the latest write time of the json and json_updates columns or 0
+	 * @param fieldUpdates the field updates of the row as JSON or null
+	 * @param now the current time in microseconds
+	 * @return a timestamp in microseconds
+	 */
+	static long getRestoreTimestamp(long writetime, String fieldUpdates, long now) {
+		return (writetime <= 0 || fieldUpdates != null) ? now : writetime;
+	}
+
+	private static boolean isExpired(String json, long now) throws Exception {
+		Map<String, Object> data = JSON_MAP_READER.readValue(json);
+		long maxAge = TYPE_MAX_AGES.getOrDefault((String) data.get(Config._TYPE), MAX_AGE_MS);
+		if (maxAge <= 0) {
+			return false;
+		}
+		long modified = NumberUtils.toLong(String.valueOf(data.get(Config._UPDATED)), 0);
+		if (modified <= 0) {
+			modified = NumberUtils.toLong(String.valueOf(data.get(Config._TIMESTAMP)), 0);
+		}
+		return modified > 0 && now - modified > maxAge;
+	}
+
+	private static long getWritetime(Row row, int i) {
+		int index = CassandraDAO.COLUMNS.split(",").length + i;
+		return row.isNull(index) ? 0 : row.getLong(index);
+	}
+
+	static String getFieldUpdates(Row row) {
+		if (row == null || !CassandraUtils.FIELD_UPDATES_ENABLED) {
+			return null;
+		}
+		return CassandraDAO.fieldUpdatesToJson(row.getMap(3, String.class, String.class));
+	}
+
+	private static Map<String, Long> getTypeMaxAges(String config) {
+		Map<String, Long> ages = new HashMap<String, Long>();
+		for (String typeAge : config.split(",")) {
+			String[] typeDays = typeAge.trim().split(":");
+			if (typeDays.length == 2 && NumberUtils.isDigits(typeDays[1].trim())) {
+				ages.put(typeDays[0].trim(), TimeUnit.DAYS.toMillis(NumberUtils.toLong(typeDays[1].trim())));
+			}
+		}
+		return ages;
+	}
+}
@@ -17,23 +17,51 @@
  */
 package com.erudika.para.server.persistence;
 
+import com.datastax.oss.driver.api.core.CqlIdentifier;
 import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.CqlSessionBuilder;
+import com.datastax.oss.driver.api.core.InvalidKeyspaceException;
+import com.datastax.oss.driver.api.core.config.DefaultDriverOption;
+import com.datastax.oss.driver.api.core.config.DriverConfigLoader;
+import com.datastax.oss.driver.api.core.config.ProgrammaticDriverConfigLoaderBuilder;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
 import com.datastax.oss.driver.api.core.cql.PreparedStatement;
-import com.datastax.oss.driver.api.core.metadata.schema.KeyspaceMetadata;
-import com.datastax.oss.driver.api.core.metadata.schema.TableMetadata;
-import com.datastax.oss.driver.api.core.session.Session;
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.datastax.oss.driver.api.core.cql.SimpleStatement;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import com.datastax.oss.driver.api.core.metadata.NodeState;
 import com.erudika.para.core.App;
 import com.erudika.para.core.listeners.DestroyListener;
 import com.erudika.para.core.utils.Config;
 import com.erudika.para.core.utils.Para;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
 import java.net.InetSocketAddress;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 import nl.altindag.ssl.SSLFactory;
+import org.apache.commons.lang3.BooleanUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,7 +72,6 @@ import org.slf4j.LoggerFactory;
 public final class CassandraUtils {
 
 	private static final Logger logger = LoggerFactory.getLogger(CassandraUtils.class);
-	private static CqlSession session;
 	private static final String DBHOSTS = Para.getConfig().cassandraHosts();
 	private static final int DBPORT = Para.getConfig().cassandraPort();
 	private static final String DBNAME = Para.getConfig().cassandraKeyspace();
@@ -57,8 +84,62 @@ public final class CassandraUtils {
 	private static final String KEYSTORE_PASS = Para.getConfig().cassandraSslKeystorePassword();
 	private static final String TRUSTSTORE_PATH = Para.getConfig().cassandraTruststore();
 	private static final String TRUSTSTORE_PASS = Para.getConfig().cassandraTruststorePassword();
+	private static final String LOCAL_DC = getConfigParam("cassandra.local_datacenter", "datacenter1");
+	private static final String DC_REPLICATION = getConfigParam("cassandra.dc_replication", "");
+	private static final String CONSISTENCY = getConfigParam("cassandra.consistency_level", "");
+	private static final String SERIAL_CONSISTENCY = getConfigParam("cassandra.serial_consistency_level", "");
+	private static final int DC_FAILOVER_NODES = getConfigInt("cassandra.dc_failover_max_nodes", 0);
+	private static final boolean DC_FAILOVER_LOCAL_CL = getConfigBoolean("cassandra.dc_failover_local_consistency", false);
+	private static final String TABLE_PROFILE = getConfigParam("cassandra.table_profile", "");
+	private static final String APP_TABLE_PROFILES = getConfigParam("cassandra.app_table_profiles", "");
+	private static final String TABLE_OPTIONS = getConfigParam("cassandra.table_options", "");
+	static final boolean CHUNKING_ENABLED = getConfigBoolean("cassandra.chunking_enabled", false);
+	static final boolean FIELD_UPDATES_ENABLED = getConfigBoolean("cassandra.field_updates_enabled", false);
+	static final boolean CHANGELOG_ENABLED = getConfigBoolean("cassandra.changelog_enabled", false);
+	static final int CHANGELOG_TTL = getConfigInt("cassandra.changelog_ttl_sec", 7 * 24 * 60 * 60);
+	static final String CHANGELOG_TABLE = "para__changelog";
+	static final boolean COUNTS_ENABLED = getConfigBoolean("cassandra.counts_enabled", false);
+	static final String COUNTS_TABLE = "para__counts";
+	static final List<String> LOOKUP_FIELDS = Arrays.stream(getConfigParam("cassandra.lookup_fields", "").split(",")).map(String::trim).
+			filter(StringUtils::isNotBlank).distinct().collect(Collectors.toList());
+	static final boolean TIERING_ENABLED = getConfigBoolean("cassandra.tiering_enabled", false);
+	private static final String COLD_TABLE_OPTIONS = getConfigParam("cassandra.cold_table_options",
+			"compression = {'class': 'DeflateCompressor', 'chunk_length_in_kb': 256} AND " +
+			"compaction = {'class': 'SizeTieredCompactionStrategy', 'min_threshold': 8} AND " +
+			"bloom_filter_fp_chance = 0.01 AND caching = {'keys': 'NONE', 'rows_per_partition': 'NONE'}");
+	private static final String APP_CLUSTERS = getConfigParam("cassandra.app_clusters", "");
+	private static final String DEFAULT_CLUSTER = "default";
+	private static final boolean SCHEMA_METADATA = getConfigBoolean("cassandra.schema_metadata_enabled", true);
+	private static final int SCHEMA_PARALLELISM = getConfigInt("cassandra.schema_parallelism", 8);
+	private static final int SCHEMA_AGREEMENT_TIMEOUT = getConfigInt("cassandra.schema_agreement_timeout_sec", 10);
+	private static final long SCHEMA_AGREEMENT_INTERVAL_MS = 200;
+	private static final boolean ADAPTIVE_CONCURRENCY = getConfigBoolean("cassandra.adaptive_concurrency_enabled", false);
 
+	private static final Map<String, CqlSession> SESSIONS = new ConcurrentHashMap<String, CqlSession>();
+	private static final Map<String, String> ROUTES = getRoutes(APP_CLUSTERS);
+	private static final Map<String, CassandraCircuitBreaker> BREAKERS = new ConcurrentHashMap<String, CassandraCircuitBreaker>();
+	private static final Set<String> RECONNECTING = ConcurrentHashMap.newKeySet();
+	private static final Map<String, Object> CONNECT_LOCKS = new ConcurrentHashMap<String, Object>();
+	private static final Map<String, ScheduledFuture<?>> RECONNECTS = new ConcurrentHashMap<String, ScheduledFuture<?>>();
+	private static final AtomicBoolean DESTROY_LISTENER_ADDED = new AtomicBoolean(false);
+	private static final ScheduledExecutorService RECONNECT_SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "cassandra-reconnect");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private static final Set<String> TABLES = ConcurrentHashMap.newKeySet();
+	private static final BigInteger RING_SIZE = BigInteger.valueOf(Long.MAX_VALUE).subtract(BigInteger.valueOf(Long.MIN_VALUE));
 	private static final Map<String, PreparedStatement> STATEMENTS = new ConcurrentHashMap<String, PreparedStatement>();
+	private static final Map<String, CompletableFuture<PreparedStatement>> PREPARING =
+			new ConcurrentHashMap<String, CompletableFuture<PreparedStatement>>();
+	private static final Map<String, String> TABLE_PROFILES = Map.of(
+			"read_heavy", "compaction = {'class': 'LeveledCompactionStrategy'} " +
+					"AND caching = {'keys': 'ALL', 'rows_per_partition': '1'} AND bloom_filter_fp_chance = 0.001",
+			"write_heavy", "compaction = {'class': 'SizeTieredCompactionStrategy'} " +
+					"AND compression = {'class': 'LZ4Compressor', 'chunk_length_in_kb': 64} AND bloom_filter_fp_chance = 0.01",
+			"time_series", "compaction = {'class': 'TimeWindowCompactionStrategy', " +
+					"'compaction_window_unit': 'DAYS', 'compaction_window_size': 1}");
 
 	static {
 		// Fix for exceptions from Spring Boot when using a different MongoDB host than localhost.
@@ -70,13 +151,111 @@ public final class CassandraUtils {
 	private CassandraUtils() { }
 
 	/**
-	 * Returns a Cassandra session object.
+	 * Reads a setting through {@link com.erudika.para.core.utils.Config#getConfigValue(java.lang.String,
+	 * java.lang.String)}, the typed getters of the config are not public.
+	 * @param key the setting key, without the "para." prefix
+	 * @param defaultValue the default value
+	 * @return the value as a string
+	 */
+	static String getConfigParam(String key, String defaultValue) {
+		return Objects.toString(Para.getConfig().getConfigValue(key, defaultValue), defaultValue);
+	}
+
+	static int getConfigInt(String key, int defaultValue) {
+		return NumberUtils.toInt(getConfigParam(key, Integer.toString(defaultValue)), defaultValue);
+	}
+
+	static boolean getConfigBoolean(String key, boolean defaultValue) {
+		return BooleanUtils.toBooleanDefaultIfNull(BooleanUtils.toBooleanObject(getConfigParam(key,
+				Boolean.toString(defaultValue))), defaultValue);
+	}
+
+	/**
+	 * Returns a Cassandra session object for the default cluster.
 	 * @return a connection session to Cassandra
 	 */
 	public static CqlSession getClient() {
+		return getClientForCluster(DEFAULT_CLUSTER);
+	}
+
+	/**
+	 * Uses the given session for a cluster, instead of connecting to it, e.g. an in-memory session in tests.
+	 * @param cluster the name of the cluster, or null for the default cluster
+	 * @param session a session
+	 */
+	static void setClient(String cluster, CqlSession session) {
+		SESSIONS.put(StringUtils.isBlank(cluster) ? DEFAULT_CLUSTER : cluster, session);
+	}
+
+	/**
+	 * Returns a Cassandra session object for the cluster where the table of an app is located.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @return a connection session to Cassandra
+	 */
+	public static CqlSession getClient(String appid) {
+		return getClientForCluster(getClusterForAppid(appid));
+	}
+
+	/**
+	 * Returns the name of the cluster which hosts the table of an app. Apps are placed on clusters with
+	 * {@code para.cassandra.app_clusters = "app1:cluster1,app2:cluster2"}, all other apps are on the default cluster.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @return a cluster name
+	 */
+	public static String getClusterForAppid(String appid) {
+		if (StringUtils.isBlank(appid)) {
+			return DEFAULT_CLUSTER;
+		}
+		return ROUTES.getOrDefault(appid, DEFAULT_CLUSTER);
+	}
+
+	private static Map<String, String> getRoutes(String appClusters) {
+		Map<String, String> routes = new HashMap<String, String>();
+		for (String route : appClusters.split(",")) {
+			String[] appidCluster = route.trim().split(":");
+			if (appidCluster.length == 2 && !StringUtils.isBlank(appidCluster[0]) && !StringUtils.isBlank(appidCluster[1])) {
+				routes.put(appidCluster[0].trim(), appidCluster[1].trim());
+			}
+		}
+		return routes;
+	}
+
+	private static CqlSession getClientForCluster(String cluster) {
+		CqlSession session = SESSIONS.get(cluster);
+		CassandraCircuitBreaker breaker = getCircuitBreaker(cluster);
 		if (session != null) {
+			if (!breaker.allowRequest()) {
+				throw new IllegalStateException("Cassandra cluster '" + cluster + "' is unavailable.");
+			}
 			return session;
 		}
+		if (RECONNECTING.contains(cluster)) {
+			throw new IllegalStateException("Cassandra cluster '" + cluster + "' is unavailable, reconnecting...");
+		}
+		// clusters are connected to independently, a slow or unreachable cluster doesn't hold up the others
+		synchronized (CONNECT_LOCKS.computeIfAbsent(cluster, k -> new Object())) {
+			session = SESSIONS.get(cluster);
+			if (session == null) {
+				session = connect(cluster);
+				if (session == null) {
+					breaker.open();
+					scheduleReconnect(cluster);
+				}
+			}
+			return session;
+		}
+	}
+
+	/**
+	 * Connects to a cluster. Only one connection attempt per cluster is made at a time - either by
+	 * the first caller, while others wait, or in the background, after the first attempt failed.
+	 */
+	private static CqlSession connect(String cluster) {
+		CqlSession session = null;
+		String hosts = getClusterParam(cluster, "hosts", DBHOSTS);
+		int port = NumberUtils.toInt(getClusterParam(cluster, "port", Integer.toString(DBPORT)), DBPORT);
+		String keyspace = getKeyspace(cluster);
+		String localDc = getClusterParam(cluster, "local_datacenter", LOCAL_DC);
 		try {
 			SSLFactory sslFactory = null;
 			if (SSL) {
@@ -95,27 +274,185 @@ public final class CassandraUtils {
 					sslFactory = SSLFactory.builder().withDefaultTrustMaterial().build();
 				}
 			}
-			session = CqlSession.builder().addContactPoints(Arrays.asList(DBHOSTS.split(",")).stream().
-					map(e -> InetSocketAddress.createUnresolved(e, DBPORT)).collect(Collectors.toList())).
+			CqlSessionBuilder builder = CqlSession.builder().addContactPoints(Arrays.asList(hosts.split(",")).stream().
+					map(e -> InetSocketAddress.createUnresolved(e.trim(), port)).collect(Collectors.toList())).
 					withSslContext(sslFactory == null ?  null : sslFactory.getSslContext()).
-					withAuthCredentials(DBUSER, DBPASS).withLocalDatacenter("datacenter1").build();
-			if (!existsTable(Para.getConfig().getRootAppIdentifier())) {
-				createTable(session, Para.getConfig().getRootAppIdentifier());
-			} else {
-				session.execute("USE " + DBNAME + ";");
+					withAuthCredentials(getClusterParam(cluster, "user", DBUSER), getClusterParam(cluster, "password", DBPASS)).
+					withLocalDatacenter(localDc).withConfigLoader(getDriverConfigLoader(cluster, keyspace)).
+					withRequestTracker(getCircuitBreaker(cluster));
+			try {
+				session = builder.withKeyspace(keyspace).build();
+			} catch (InvalidKeyspaceException e) {
+				// a session can't be opened in a missing keyspace, so it is created through a session without one
+				try (CqlSession bootstrap = builder.withKeyspace((CqlIdentifier) null).build()) {
+					createKeyspace(bootstrap, cluster);
+				}
+				session = builder.withKeyspace(keyspace).build();
 			}
-			logger.debug("Cassandra host: " + DBHOSTS + ":" + DBPORT + ", keyspace: " + DBNAME);
+			// the shared tables are created on every cluster, the tables of the root app only on its own
+			String rootAppid = Para.getConfig().getRootAppIdentifier();
+			createTables(session, cluster, cluster.equals(getClusterForAppid(rootAppid)) ?
+					List.of(rootAppid) : Collections.emptyList());
+			// other threads only get the session once it is fully initialized
+			SESSIONS.put(cluster, session);
+			logger.debug("Cassandra cluster: " + cluster + ", host: " + hosts + ":" + port +
+					", keyspace: " + keyspace + ", local DC: " + localDc);
 		} catch (Exception e) {
-			logger.error("Failed to connect ot Cassandra: {}.", e.getMessage());
+			logger.error("Failed to connect ot Cassandra cluster '{}': {}.", cluster, e.getMessage());
+			if (session != null) {
+				session.closeAsync();
+				session = null;
+			}
+		}
+		if (DESTROY_LISTENER_ADDED.compareAndSet(false, true)) {
+			Para.addDestroyListener(new DestroyListener() {
+				public void onDestroy() {
+					shutdownClient();
+				}
+			});
+		}
+		return session;
+	}
+
+	private static void scheduleReconnect(String cluster) {
+		if (RECONNECTING.add(cluster)) {
+			scheduleReconnect(cluster, getCircuitBreaker(cluster).getOpenFor());
 		}
+	}
 
-		Para.addDestroyListener(new DestroyListener() {
-			public void onDestroy() {
-				shutdownClient();
+	private static void scheduleReconnect(String cluster, long delayMs) {
+		logger.info("Reconnecting to Cassandra cluster '{}' in {}ms...", cluster, delayMs);
+		RECONNECTS.put(cluster, RECONNECT_SCHEDULER.schedule(() -> {
+			synchronized (CONNECT_LOCKS.computeIfAbsent(cluster, k -> new Object())) {
+				// the client may have been shut down while this task was waiting
+				if (!RECONNECTING.contains(cluster)) {
+					return;
+				}
+				if (connect(cluster) != null) {
+					RECONNECTING.remove(cluster);
+					RECONNECTS.remove(cluster);
+					getCircuitBreaker(cluster).recordSuccess();
+					logger.info("Reconnected to Cassandra cluster '{}'.", cluster);
+				} else {
+					getCircuitBreaker(cluster).open();
+					scheduleReconnect(cluster, getCircuitBreaker(cluster).getOpenFor());
+				}
 			}
-		});
+		}, delayMs, TimeUnit.MILLISECONDS));
+	}
 
-		return session;
+	private static CassandraCircuitBreaker getCircuitBreaker(String cluster) {
+		return BREAKERS.computeIfAbsent(cluster, CassandraCircuitBreaker::new);
+	}
+
+	/**
+	 * Returns the state of the circuit breaker for the cluster where the table of an app is located.
+	 * The state is "CLOSED" when the cluster is available, "OPEN" when requests fail fast because
+	 * the cluster can't be reached, or "HALF_OPEN" while probing whether the cluster is available again.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @return the circuit breaker state
+	 */
+	public static String getCircuitBreakerState(String appid) {
+		return getCircuitBreaker(getClusterForAppid(appid)).getState().name();
+	}
+
+	/**
+	 * Returns the number of requests currently allowed in flight to the cluster where the table of an app is located,
+	 * when {@code para.cassandra.adaptive_concurrency_enabled} is on. The limit goes down when the cluster slows down.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @return the concurrency limit or -1 if adaptive concurrency is disabled or the cluster isn't connected
+	 */
+	public static int getConcurrencyLimit(String appid) {
+		CassandraConcurrencyLimiter limiter = CassandraConcurrencyLimiter.getLimiter(getClusterForAppid(appid));
+		return limiter == null ? -1 : limiter.getLimit();
+	}
+
+	/**
+	 * Returns a setting for a cluster, e.g. {@code para.cassandra.cluster.cluster1.hosts}.
+	 * The default cluster uses the main settings, e.g. {@code para.cassandra.hosts}.
+	 */
+	private static String getClusterParam(String cluster, String param, String defaultValue) {
+		if (DEFAULT_CLUSTER.equals(cluster)) {
+			return defaultValue;
+		}
+		return getConfigParam("cassandra.cluster." + cluster + "." + param, defaultValue);
+	}
+
+	private static String getKeyspace(String cluster) {
+		return getClusterParam(cluster, "keyspace", DBNAME);
+	}
+
+	private static void createKeyspace(CqlSession client, String cluster) {
+		String keyspace = getKeyspace(cluster);
+		try {
+			if (client.execute(SimpleStatement.newInstance("SELECT keyspace_name FROM system_schema.keyspaces " +
+					"WHERE keyspace_name = ?;", keyspace.toLowerCase())).one() == null) {
+				client.execute("CREATE KEYSPACE IF NOT EXISTS " + keyspace + " WITH replication = " +
+						getReplicationOptions(getClusterParam(cluster, "dc_replication", DC_REPLICATION),
+								NumberUtils.toInt(getClusterParam(cluster, "replication_factor",
+										Integer.toString(REPLICATION)), REPLICATION)) + ";");
+				// tables can only be created once all nodes know the keyspace
+				awaitSchemaAgreement(client, cluster);
+			}
+		} catch (Exception e) {
+			logger.warn("Could not create keyspace {}!", keyspace);
+		}
+	}
+
+	/**
+	 * Driver settings for schema metadata, consistency and remote DC failover. Schema metadata is only
+	 * loaded for the Para keyspace, or not at all if {@code para.cassandra.schema_metadata_enabled = false}.
+	 * The driver doesn't wait for schema agreement after each DDL statement, see {@link #awaitSchemaAgreement}.
+	 * Requests are always routed to nodes in the local DC first, remote DCs are only used if failover
+	 * is enabled with {@code para.cassandra.dc_failover_max_nodes}.
+	 */
+	private static DriverConfigLoader getDriverConfigLoader(String cluster, String keyspace) {
+		ProgrammaticDriverConfigLoaderBuilder config = DriverConfigLoader.programmaticBuilder();
+		config.withString(DefaultDriverOption.SESSION_NAME, cluster);
+		if (ADAPTIVE_CONCURRENCY) {
+			config.withClass(DefaultDriverOption.REQUEST_THROTTLER_CLASS, CassandraConcurrencyLimiter.class);
+		}
+		config.withStringList(DefaultDriverOption.METADATA_SCHEMA_REFRESHED_KEYSPACES, List.of(keyspace));
+		config.withBoolean(DefaultDriverOption.METADATA_SCHEMA_ENABLED, SCHEMA_METADATA);
+		// this also turns off CqlSession.checkSchemaAgreement(), which reads the same setting
+		config.withDuration(DefaultDriverOption.CONTROL_CONNECTION_AGREEMENT_TIMEOUT, Duration.ZERO);
+		if (!StringUtils.isBlank(CONSISTENCY)) {
+			config.withString(DefaultDriverOption.REQUEST_CONSISTENCY, CONSISTENCY.trim().toUpperCase());
+		}
+		if (!StringUtils.isBlank(SERIAL_CONSISTENCY)) {
+			config.withString(DefaultDriverOption.REQUEST_SERIAL_CONSISTENCY, SERIAL_CONSISTENCY.trim().toUpperCase());
+		}
+		if (DC_FAILOVER_NODES > 0) {
+			config.withInt(DefaultDriverOption.LOAD_BALANCING_DC_FAILOVER_MAX_NODES_PER_REMOTE_DC, DC_FAILOVER_NODES);
+			config.withBoolean(DefaultDriverOption.LOAD_BALANCING_DC_FAILOVER_ALLOW_FOR_LOCAL_CONSISTENCY_LEVELS,
+					DC_FAILOVER_LOCAL_CL);
+		}
+		return config.build();
+	}
+
+	/**
+	 * Returns the keyspace replication map. If per-DC replication factors are configured, e.g.
+	 * {@code "dc1:3,dc2:3"}, {@code NetworkTopologyStrategy} is used, otherwise {@code SimpleStrategy}.
+	 * @param dcReplication a comma-separated list of "datacenter:replication_factor" pairs
+	 * @param replicationFactor the replication factor for {@code SimpleStrategy}
+	 * @return a CQL replication map
+	 */
+	static String getReplicationOptions(String dcReplication, int replicationFactor) {
+		StringBuilder sb = new StringBuilder();
+		if (!StringUtils.isBlank(dcReplication)) {
+			for (String dc : dcReplication.split(",")) {
+				String[] dcRf = dc.trim().split(":");
+				if (dcRf.length == 2 && !StringUtils.isBlank(dcRf[0]) && StringUtils.isNumeric(dcRf[1].trim())) {
+					sb.append(", '").append(dcRf[0].trim()).append("': ").append(dcRf[1].trim());
+				} else {
+					logger.warn("Invalid replication setting '{}' in para.cassandra.dc_replication.", dc);
+				}
+			}
+		}
+		if (sb.length() > 0) {
+			return "{'class': 'NetworkTopologyStrategy'" + sb.toString() + "}";
+		}
+		return "{'class': 'SimpleStrategy', 'replication_factor': " + replicationFactor + "}";
 	}
 
 	/**
@@ -123,14 +460,27 @@ public final class CassandraUtils {
 	 * You can tell Para to call this on shutdown using {@code Para.addDestroyListener()}
 	 */
 	public static void shutdownClient() {
-		if (session != null) {
-			session.close();
-			session = null;
+		RECONNECTING.clear();
+		for (String cluster : RECONNECTS.keySet()) {
+			ScheduledFuture<?> reconnect = RECONNECTS.remove(cluster);
+			if (reconnect != null) {
+				reconnect.cancel(false);
+			}
+		}
+		for (String cluster : SESSIONS.keySet()) {
+			CqlSession session = SESSIONS.remove(cluster);
+			if (session != null) {
+				session.close();
+			}
 		}
+		STATEMENTS.clear();
+		PREPARING.clear();
+		TABLES.clear();
 	}
 
 	/**
-	 * Checks if the main table exists in the database.
+	 * Checks if the main table exists in the database. Tables which exist are cached, so only
+	 * the first check for each table queries the schema tables.
 	 * @param appid name of the {@link com.erudika.para.core.App}
 	 * @return true if the table exists
 	 */
@@ -138,13 +488,37 @@ public final class CassandraUtils {
 		if (StringUtils.isBlank(appid)) {
 			return false;
 		}
+		String cluster = getClusterForAppid(appid);
+		String table = getTableNameForAppid(appid).toLowerCase();
+		String key = cluster + ":" + table;
+		if (TABLES.contains(key)) {
+			return true;
+		}
+		try {
+			// connects to the cluster if this is the first request to it
+			return existsTable(getClientForCluster(cluster), cluster, appid);
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	private static boolean existsTable(CqlSession session, String cluster, String appid) {
+		String table = getTableNameForAppid(appid).toLowerCase();
+		String key = cluster + ":" + table;
+		if (TABLES.contains(key)) {
+			return true;
+		}
 		if (session == null) {
-			throw new IllegalStateException("Cassandra client not initialized.");
+			return false;
 		}
 		try {
-			KeyspaceMetadata ks = session.getMetadata().getKeyspace(DBNAME).get();
-			TableMetadata table = ks.getTable(getTableNameForAppid(appid)).get();
-			return table != null && table.getName() != null;
+			// system_schema is read directly, the driver's schema metadata may be disabled or not refreshed yet
+			boolean exists = session.execute(SimpleStatement.newInstance("SELECT table_name FROM system_schema.tables " +
+					"WHERE keyspace_name = ? AND table_name = ?;", getKeyspace(cluster).toLowerCase(), table)).one() != null;
+			if (exists) {
+				TABLES.add(key);
+			}
+			return exists;
 		} catch (Exception e) {
 			return false;
 		}
@@ -156,32 +530,229 @@ public final class CassandraUtils {
 	 * @return true if created
 	 */
 	public static boolean createTable(String appid) {
-		return createTable(getClient(), appid);
+		return createTables(Collections.singletonList(appid)) > 0;
 	}
 
-	static boolean createTable(Session client, String appid) {
-		if (StringUtils.isBlank(appid) || StringUtils.containsWhitespace(appid) ||
-				existsTable(appid) || client == null) {
-			return false;
+	/**
+	 * Creates the tables of many apps at once, e.g. on startup. Tables are created in parallel and
+	 * the schema agreement between nodes is checked once, after all tables are created. Existing tables are skipped,
+	 * but tables of features enabled since they were created, e.g. lookup or cold tables, are added to them.
+	 * @param appids a list of {@link com.erudika.para.core.App} names
+	 * @return the number of tables created
+	 */
+	public static int createTables(Collection<String> appids) {
+		if (appids == null || appids.isEmpty()) {
+			return 0;
 		}
-		String table = getTableNameForAppid(appid);
+		Map<String, List<String>> appidsByCluster = new HashMap<String, List<String>>();
+		for (String appid : appids) {
+			if (!StringUtils.isBlank(appid) && !StringUtils.containsWhitespace(appid)) {
+				appidsByCluster.computeIfAbsent(getClusterForAppid(appid), k -> new ArrayList<String>()).add(appid);
+			}
+		}
+		int created = 0;
+		for (Map.Entry<String, List<String>> entry : appidsByCluster.entrySet()) {
+			created += createTables(getClientForCluster(entry.getKey()), entry.getKey(), entry.getValue());
+		}
+		return created;
+	}
+
+	private static int createTables(CqlSession client, String cluster, List<String> appids) {
+		if (client == null) {
+			return 0;
+		}
+		List<String> missing = appids.stream().distinct().filter(appid -> !existsTable(client, cluster, appid)).collect(Collectors.toList());
+		if (!missing.isEmpty()) {
+			createKeyspace(client, cluster);
+		}
+		// every table or column which is created or found to exist is added, so this only grows if there was DDL
+		int known = TABLES.size();
+		// shared tables may be missing even if the tables of the apps exist, e.g. after enabling the changelog or counts
+		createSharedTables(client, cluster);
+		createSideTables(client, cluster, appids.stream().distinct().filter(appid -> !missing.contains(appid)).
+				collect(Collectors.toList()));
+		int created = 0;
+		int parallelism = Math.max(1, SCHEMA_PARALLELISM);
+		for (int i = 0; i < missing.size(); i += parallelism) {
+			List<String> batch = missing.subList(i, Math.min(i + parallelism, missing.size()));
+			List<CompletableFuture<AsyncResultSet>> tables = new ArrayList<CompletableFuture<AsyncResultSet>>(batch.size());
+			for (String appid : batch) {
+				tables.add(createTableAsync(client, cluster, appid));
+			}
+			for (int j = 0; j < batch.size(); j++) {
+				String table = getTableNameForAppid(batch.get(j));
+				try {
+					tables.get(j).join();
+					TABLES.add(cluster + ":" + table.toLowerCase());
+					logger.info("Created Cassandra table '{}' on cluster '{}'.", table, cluster);
+					created++;
+				} catch (Exception e) {
+					logger.error("Failed to create Cassandra table '" + table + "' on cluster '" + cluster + "'.", e);
+				}
+			}
+		}
+		if (TABLES.size() > known) {
+			awaitSchemaAgreement(client, cluster);
+		}
+		return created;
+	}
+
+	/**
+	 * Waits until all nodes which are up report the same schema version, or until
+	 * {@code para.cassandra.schema_agreement_timeout_sec} have passed. The driver's own wait after each DDL statement
+	 * is turned off, so many DDL statements run without waiting in between, and this is called once after them.
+	 * Like the driver, this reads {@code system.local} and {@code system.peers} and skips peers which are down.
+	 * @return true if the schema is in agreement
+	 */
+	private static boolean awaitSchemaAgreement(CqlSession client, String cluster) {
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(SCHEMA_AGREEMENT_TIMEOUT);
 		try {
-			if (session.getMetadata().getKeyspace(DBNAME).isEmpty()) {
-				session.execute("CREATE KEYSPACE IF NOT EXISTS " + DBNAME +
-						" WITH replication = {'class': 'SimpleStrategy', 'replication_factor': " + REPLICATION + "};");
+			while (true) {
+				Set<Object> up = client.getMetadata().getNodes().values().stream().filter(node -> node.getState() ==
+						NodeState.UP).map(Node::getHostId).filter(Objects::nonNull).collect(Collectors.toSet());
+				Set<Object> versions = new HashSet<Object>();
+				Row local = client.execute(SimpleStatement.newInstance("SELECT schema_version FROM system.local " +
+						"WHERE key = ?;", "local")).one();
+				if (local != null) {
+					versions.add(local.getObject(0));
+				}
+				for (Row peer : client.execute("SELECT host_id, schema_version FROM system.peers;")) {
+					if (up.contains(peer.getObject(0))) {
+						versions.add(peer.getObject(1));
+					}
+				}
+				if (versions.size() <= 1) {
+					return true;
+				}
+				if (System.currentTimeMillis() >= deadline) {
+					break;
+				}
+				Thread.sleep(SCHEMA_AGREEMENT_INTERVAL_MS);
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		} catch (Exception e) {
-			logger.warn("Could not create keyspace {}!", DBNAME);
+			logger.warn("Failed to check the schema agreement of Cassandra cluster '{}': {}", cluster, e.getMessage());
+			return false;
+		}
+		logger.warn("Schema of Cassandra cluster '{}' is not in agreement after {}s.", cluster, SCHEMA_AGREEMENT_TIMEOUT);
+		return false;
+	}
+
+	/**
+	 * Creates the tables shared by all apps on a cluster, if they don't exist. This is done once per session,
+	 * on connect and before creating the tables of apps.
+	 */
+	private static void createSharedTables(CqlSession client, String cluster) {
+		String keyspace = getKeyspace(cluster);
+		if (CHANGELOG_ENABLED) {
+			// one partition per app and hour, expired automatically - TWCS drops whole SSTables once they expire
+			createSharedTable(client, cluster, CHANGELOG_TABLE, "CREATE TABLE IF NOT EXISTS " + keyspace + "." + CHANGELOG_TABLE +
+					" (appid text, bucket bigint, ts bigint, id text, op text, PRIMARY KEY ((appid, bucket), ts, id))" +
+					" WITH default_time_to_live = " + CHANGELOG_TTL + " AND compaction = {'class': " +
+					"'TimeWindowCompactionStrategy', 'compaction_window_unit': 'HOURS', 'compaction_window_size': 6};");
+		}
+		if (COUNTS_ENABLED) {
+			createSharedTable(client, cluster, COUNTS_TABLE, "CREATE TABLE IF NOT EXISTS " + keyspace + "." + COUNTS_TABLE +
+					" (appid text, type text, objects counter, PRIMARY KEY (appid, type));");
+		}
+	}
+
+	private static void createSharedTable(CqlSession client, String cluster, String table, String query) {
+		String key = cluster + ":" + table;
+		if (TABLES.contains(key)) {
+			return;
 		}
 		try {
-			session.execute("USE " + DBNAME + ";");
-			session.execute("CREATE TABLE IF NOT EXISTS " + table + " (id text PRIMARY KEY, json text, json_updates text);");
-			logger.info("Created Cassandra table '{}'.", table);
+			client.execute(query);
+			TABLES.add(key);
 		} catch (Exception e) {
-			logger.error(null, e);
-			return false;
+			logger.error("Failed to create Cassandra table '" + table + "' on cluster '" + cluster + "'.", e);
+		}
+	}
+
+	private static CompletableFuture<AsyncResultSet> createTableAsync(CqlSession client, String cluster, String appid) {
+		String keyspace = getKeyspace(cluster);
+		String table = keyspace + "." + getTableNameForAppid(appid);
+		CompletableFuture<AsyncResultSet> main = client.executeAsync("CREATE TABLE IF NOT EXISTS " + table +
+				" (id text PRIMARY KEY, json text, json_updates text" + (FIELD_UPDATES_ENABLED ?
+				", field_updates map<text, text>)" : ")") + getTableOptions(appid, " WITH ") + ";").toCompletableFuture();
+		return main.thenCompose(rs -> createSideTablesAsync(client, cluster, appid));
+	}
+
+	/**
+	 * Creates the tables of apps which already exist, if they are missing the tables of features enabled
+	 * after the apps were created, e.g. lookup tables or cold tables.
+	 */
+	private static void createSideTables(CqlSession client, String cluster, List<String> appids) {
+		for (String appid : appids) {
+			addFieldUpdatesColumn(client, cluster, appid);
+			try {
+				createSideTablesAsync(client, cluster, appid).join();
+			} catch (Exception e) {
+				logger.error("Failed to create the tables of app '" + appid + "' on cluster '" + cluster + "'.", e);
+			}
 		}
-		return true;
+	}
+
+	/**
+	 * Adds the field_updates column to the main table of an app which was created before field updates were enabled.
+	 * The column is only added if it's missing, so this is safe to run on every startup.
+	 */
+	private static void addFieldUpdatesColumn(CqlSession client, String cluster, String appid) {
+		String table = getTableNameForAppid(appid).toLowerCase();
+		String key = cluster + ":" + table + ".field_updates";
+		if (!FIELD_UPDATES_ENABLED || TABLES.contains(key)) {
+			return;
+		}
+		try {
+			if (client.execute(SimpleStatement.newInstance("SELECT column_name FROM system_schema.columns " +
+					"WHERE keyspace_name = ? AND table_name = ? AND column_name = ?;", getKeyspace(cluster).toLowerCase(),
+					table, "field_updates")).one() == null) {
+				client.execute("ALTER TABLE " + getKeyspace(cluster) + "." + getTableNameForAppid(appid) +
+						" ADD field_updates map<text, text>;");
+				logger.info("Added column 'field_updates' to Cassandra table '{}' on cluster '{}'.", table, cluster);
+			}
+			TABLES.add(key);
+		} catch (Exception e) {
+			logger.error("Failed to add column 'field_updates' to Cassandra table '" + table +
+					"' on cluster '" + cluster + "'.", e);
+		}
+	}
+
+	/**
+	 * Creates the tables which are kept next to the main table of an app, for the features which are enabled.
+	 * Each table is only created once per session.
+	 */
+	private static CompletableFuture<AsyncResultSet> createSideTablesAsync(CqlSession client, String cluster, String appid) {
+		CompletableFuture<AsyncResultSet> tables = CompletableFuture.completedFuture(null);
+		if (CHUNKING_ENABLED) {
+			tables = createSideTableAsync(tables, client, cluster, getChunksTableNameForAppid(appid),
+					" (id text, idx int, data text, PRIMARY KEY (id, idx))");
+		}
+		if (!LOOKUP_FIELDS.isEmpty()) {
+			tables = createSideTableAsync(tables, client, cluster, getLookupTableNameForAppid(appid),
+					" (field text, value text, id text, PRIMARY KEY ((field, value)))");
+		}
+		if (TIERING_ENABLED) {
+			// archived objects are stored whole, in a table tuned for size rather than speed
+			tables = createSideTableAsync(tables, client, cluster, getColdTableNameForAppid(appid), " (id text PRIMARY KEY, json text)" +
+					(StringUtils.isBlank(COLD_TABLE_OPTIONS) ? "" : " WITH " + COLD_TABLE_OPTIONS.trim()));
+		}
+		return tables;
+	}
+
+	private static CompletableFuture<AsyncResultSet> createSideTableAsync(CompletableFuture<AsyncResultSet> previous,
+			CqlSession client, String cluster, String table, String definition) {
+		String key = cluster + ":" + table.toLowerCase();
+		if (TABLES.contains(key)) {
+			return previous;
+		}
+		return previous.thenCompose(rs -> client.executeAsync("CREATE TABLE IF NOT EXISTS " + getKeyspace(cluster) + "." +
+				table + definition + ";").toCompletableFuture()).thenApply(rs -> {
+					TABLES.add(key);
+					return rs;
+				});
 	}
 
 	/**
@@ -195,7 +766,15 @@ public final class CassandraUtils {
 		}
 		try {
 			String table = getTableNameForAppid(appid);
-			getClient().execute("DROP TABLE IF EXISTS " + table + ";");
+			getClient(appid).execute("DROP TABLE IF EXISTS " + table + ";");
+			getClient(appid).execute("DROP TABLE IF EXISTS " + getChunksTableNameForAppid(appid) + ";");
+			getClient(appid).execute("DROP TABLE IF EXISTS " + getColdTableNameForAppid(appid) + ";");
+			getClient(appid).execute("DROP TABLE IF EXISTS " + getLookupTableNameForAppid(appid) + ";");
+			awaitSchemaAgreement(getClient(appid), getClusterForAppid(appid));
+			for (String name : Arrays.asList(table, getChunksTableNameForAppid(appid), getColdTableNameForAppid(appid),
+					getLookupTableNameForAppid(appid))) {
+				TABLES.remove(getClusterForAppid(appid) + ":" + name.toLowerCase());
+			}
 			logger.info("Deleted Cassandra table '{}'.", table);
 		} catch (Exception e) {
 			logger.error(null, e);
@@ -204,6 +783,71 @@ public final class CassandraUtils {
 		return false;
 	}
 
+	/**
+	 * Applies the configured table options profile to an existing table.
+	 * Use this after changing {@code para.cassandra.table_profile} or {@code para.cassandra.app_table_profiles}.
+	 * Tables of features which were enabled after the app was created, e.g. the lookup or cold table, are created too.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @return true if altered
+	 */
+	public static boolean alterTable(String appid) {
+		if (StringUtils.isBlank(appid) || !existsTable(appid)) {
+			return false;
+		}
+		String cluster = getClusterForAppid(appid);
+		createSideTables(getClientForCluster(cluster), cluster, Collections.singletonList(appid));
+		String options = getTableOptions(appid, "");
+		if (options.isEmpty()) {
+			return false;
+		}
+		try {
+			String table = getTableNameForAppid(appid);
+			getClient(appid).execute("ALTER TABLE " + table + " WITH " + options + ";");
+			awaitSchemaAgreement(getClient(appid), cluster);
+			logger.info("Altered Cassandra table '{}' - {}.", table, options);
+		} catch (Exception e) {
+			logger.error(null, e);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the table options for an app, based on its table profile. Per-app profiles are set with
+	 * {@code para.cassandra.app_table_profiles = "app1:read_heavy,app2:time_series:86400"}, all other apps use
+	 * {@code para.cassandra.table_profile}. The optional third part is the default TTL of the app's objects in seconds,
+	 * there is no global one. Extra options from {@code para.cassandra.table_options} are appended.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param prefix prepended to the options if they are not empty
+	 * @return a CQL table options clause or empty string
+	 */
+	static String getTableOptions(String appid, String prefix) {
+		String profile = TABLE_PROFILE;
+		int ttl = 0;
+		for (String appProfile : APP_TABLE_PROFILES.split(",")) {
+			String[] appidProfile = appProfile.trim().split(":");
+			if ((appidProfile.length == 2 || appidProfile.length == 3) && appidProfile[0].trim().equals(appid)) {
+				profile = appidProfile[1].trim();
+				ttl = appidProfile.length == 3 ? NumberUtils.toInt(appidProfile[2].trim(), 0) : 0;
+			}
+		}
+		List<String> options = new ArrayList<String>();
+		if (!StringUtils.isBlank(profile)) {
+			if (TABLE_PROFILES.containsKey(profile)) {
+				options.add(TABLE_PROFILES.get(profile));
+			} else {
+				logger.warn("Unknown table profile '{}', valid profiles are {}.", profile, TABLE_PROFILES.keySet());
+			}
+		}
+		if (ttl > 0) {
+			options.add("default_time_to_live = " + ttl);
+		}
+		if (!StringUtils.isBlank(TABLE_OPTIONS)) {
+			options.add(TABLE_OPTIONS.trim());
+		}
+		return options.isEmpty() ? "" : prefix + String.join(" AND ", options);
+	}
+
 	/**
 	 * Returns the table name for a given app id. Table names are usually in the form 'prefix_appid'.
 	 * @param appIdentifier app id
@@ -218,18 +862,143 @@ public final class CassandraUtils {
 		}
 	}
 
+	/**
+	 * Returns the name of the table which holds the chunks of large objects for a given app id.
+	 * @param appIdentifier app id
+	 * @return the table name
+	 */
+	public static String getChunksTableNameForAppid(String appIdentifier) {
+		String table = getTableNameForAppid(appIdentifier);
+		return table == null ? null : table + "_chunks";
+	}
+
+	/**
+	 * Returns the name of the table which holds the archived (cold) objects for a given app id.
+	 * @param appIdentifier app id
+	 * @return the table name
+	 */
+	public static String getColdTableNameForAppid(String appIdentifier) {
+		String table = getTableNameForAppid(appIdentifier);
+		return table == null ? null : table + "_cold";
+	}
+
+	/**
+	 * Returns the name of the table which maps the values of lookup fields to object ids for a given app id.
+	 * @param appIdentifier app id
+	 * @return the table name
+	 */
+	public static String getLookupTableNameForAppid(String appIdentifier) {
+		String table = getTableNameForAppid(appIdentifier);
+		return table == null ? null : table + "_lookups";
+	}
+
+	/**
+	 * Returns the approximate number of objects in an app, without scanning the table. The estimate is based
+	 * on {@code system.size_estimates} of the coordinator node, which covers only the token ranges of that node,
+	 * and is scaled up to the whole ring. Estimates are updated periodically by Cassandra (every 5 min by default),
+	 * so recent writes may be missing, and the error is larger for small tables.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @return the estimated number of objects or -1 if no estimate is available
+	 */
+	public static long getApproximateCount(String appid) {
+		if (StringUtils.isBlank(appid)) {
+			return -1;
+		}
+		String cluster = getClusterForAppid(appid);
+		try {
+			BigInteger covered = BigInteger.ZERO;
+			long partitions = 0;
+			for (Row row : getClientForCluster(cluster).execute(SimpleStatement.newInstance("SELECT range_start, range_end, " +
+					"partitions_count FROM system.size_estimates WHERE keyspace_name = ? AND table_name = ?;",
+					getKeyspace(cluster).toLowerCase(), getTableNameForAppid(appid).toLowerCase()))) {
+				BigInteger start = new BigInteger(row.getString(0));
+				BigInteger end = new BigInteger(row.getString(1));
+				// a range which wraps around the end of the ring
+				covered = covered.add(end.compareTo(start) > 0 ? end.subtract(start) : end.subtract(start).add(RING_SIZE));
+				partitions += row.getLong(2);
+			}
+			if (covered.signum() <= 0) {
+				return -1;
+			}
+			return new BigDecimal(partitions).multiply(new BigDecimal(RING_SIZE)).
+					divide(new BigDecimal(covered), 0, RoundingMode.HALF_UP).longValue();
+		} catch (Exception e) {
+			logger.error(null, e);
+		}
+		return -1;
+	}
+
+	/**
+	 * Splits the whole token ring of the Murmur3 partitioner into ranges of equal size.
+	 * Each range is an array of two tokens - start (exclusive) and end (inclusive).
+	 * @param splits the number of ranges
+	 * @return a list of token ranges
+	 */
+	static List<long[]> getTokenRanges(int splits) {
+		int count = Math.max(1, splits);
+		List<long[]> ranges = new ArrayList<long[]>(count);
+		BigInteger min = BigInteger.valueOf(Long.MIN_VALUE);
+		BigInteger width = BigInteger.valueOf(Long.MAX_VALUE).subtract(min);
+		long start = Long.MIN_VALUE;
+		for (int i = 1; i <= count; i++) {
+			long end = (i == count) ? Long.MAX_VALUE :
+					min.add(width.multiply(BigInteger.valueOf(i)).divide(BigInteger.valueOf(count))).longValue();
+			ranges.add(new long[]{start, end});
+			start = end;
+		}
+		return ranges;
+	}
+
 	/**
 	 * Caches the prepared statements on the query (key).
 	 * @param query a CQL query
 	 * @return a prepared statement
 	 */
-	protected static synchronized PreparedStatement getPreparedStatement(String query) {
-		if (STATEMENTS.containsKey(query)) {
-			return STATEMENTS.get(query);
-		} else {
-			PreparedStatement ps = getClient().prepare(query);
-			STATEMENTS.put(query, ps);
+	protected static PreparedStatement getPreparedStatement(String query) {
+		return getPreparedStatement(null, query);
+	}
+
+	/**
+	 * Caches the prepared statements on the query (key), for the cluster where the table of an app is located.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param query a CQL query
+	 * @return a prepared statement
+	 */
+	protected static PreparedStatement getPreparedStatement(String appid, String query) {
+		String cluster = getClusterForAppid(appid);
+		String key = cluster + ":" + query;
+		PreparedStatement ps = STATEMENTS.get(key);
+		if (ps != null) {
 			return ps;
 		}
+		CqlSession client = getClientForCluster(cluster);
+		// only callers of the same query wait for each other while it is being prepared
+		return STATEMENTS.computeIfAbsent(key, k -> client.prepare(query));
+	}
+
+	/**
+	 * Like {@link #getPreparedStatement(java.lang.String, java.lang.String)}, but the statement is prepared
+	 * asynchronously. Use this in the callbacks of asynchronous requests, which run on the I/O threads of the driver,
+	 * where blocking calls are not allowed.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param query a CQL query
+	 * @return a prepared statement
+	 */
+	static CompletableFuture<PreparedStatement> getPreparedStatementAsync(String appid, String query) {
+		String cluster = getClusterForAppid(appid);
+		String key = cluster + ":" + query;
+		PreparedStatement ps = STATEMENTS.get(key);
+		if (ps != null) {
+			return CompletableFuture.completedFuture(ps);
+		}
+		CqlSession client = getClientForCluster(cluster);
+		CompletableFuture<PreparedStatement> prepared = PREPARING.computeIfAbsent(key,
+				k -> client.prepareAsync(query).toCompletableFuture());
+		return prepared.whenComplete((p, ex) -> {
+			if (p != null) {
+				STATEMENTS.putIfAbsent(key, p);
+			}
+			PREPARING.remove(key, prepared);
+		});
 	}
 }
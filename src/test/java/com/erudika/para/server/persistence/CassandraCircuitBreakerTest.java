@@ -0,0 +1,123 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.datastax.oss.driver.api.core.DriverTimeoutException;
+import com.datastax.oss.driver.api.core.InvalidKeyspaceException;
+import com.datastax.oss.driver.api.core.NoNodeAvailableException;
+import com.erudika.para.server.persistence.CassandraCircuitBreaker.State;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the state transitions of the circuit breaker, with a clock that only moves when told to.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class CassandraCircuitBreakerTest {
+
+	private final AtomicLong now = new AtomicLong(1000000);
+	private final CassandraCircuitBreaker breaker = new CassandraCircuitBreaker("test", now::get);
+
+	private void fail(int times) {
+		for (int i = 0; i < times; i++) {
+			breaker.onError(null, new NoNodeAvailableException(), 0, null, null, "");
+		}
+	}
+
+	@Test
+	public void testOpenAndClose() {
+		assertEquals(State.CLOSED, breaker.getState());
+		fail(4);
+		assertEquals(State.CLOSED, breaker.getState());
+		assertTrue(breaker.allowRequest());
+		fail(1);
+		assertEquals(State.OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest());
+
+		now.addAndGet(breaker.getOpenFor() - 1);
+		assertFalse(breaker.allowRequest());
+		now.addAndGet(1);
+		assertTrue(breaker.allowRequest());
+		assertEquals(State.HALF_OPEN, breaker.getState());
+
+		breaker.onSuccess(null, 0, null, null, "");
+		assertEquals(State.CLOSED, breaker.getState());
+		assertTrue(breaker.allowRequest());
+		// the failure count starts over after closing
+		fail(4);
+		assertEquals(State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void testBackoff() {
+		fail(5);
+		long openFor = breaker.getOpenFor();
+		assertEquals(5000, openFor);
+		// every failed probe doubles the time the breaker stays open, up to the maximum
+		for (long expected : new long[] {10000, 20000, 40000, 60000, 60000}) {
+			now.addAndGet(breaker.getOpenFor());
+			assertTrue(breaker.allowRequest());
+			breaker.onError(null, new DriverTimeoutException("timeout"), 0, null, null, "");
+			assertEquals(State.OPEN, breaker.getState());
+			assertEquals(expected, breaker.getOpenFor());
+			now.addAndGet(expected - 1);
+			assertFalse(breaker.allowRequest());
+			now.addAndGet(-(expected - 1));
+		}
+		// failed reconnects back off the same way
+		breaker.open();
+		assertEquals(60000, breaker.getOpenFor());
+
+		now.addAndGet(breaker.getOpenFor());
+		assertTrue(breaker.allowRequest());
+		breaker.recordSuccess();
+		assertEquals(State.CLOSED, breaker.getState());
+		assertEquals(openFor, breaker.getOpenFor());
+	}
+
+	@Test
+	public void testFailureWindow() {
+		fail(4);
+		// failures older than the window don't count
+		now.addAndGet(10001);
+		fail(4);
+		assertEquals(State.CLOSED, breaker.getState());
+		fail(1);
+		assertEquals(State.OPEN, breaker.getState());
+	}
+
+	@Test
+	public void testIgnoredErrors() {
+		for (int i = 0; i < 10; i++) {
+			breaker.onError(null, new InvalidKeyspaceException("bad query"), 0, null, null, "");
+			breaker.onError(null, new IllegalArgumentException(), 0, null, null, "");
+		}
+		assertEquals(State.CLOSED, breaker.getState());
+		assertTrue(breaker.allowRequest());
+
+		fail(5);
+		now.addAndGet(breaker.getOpenFor());
+		assertTrue(breaker.allowRequest());
+		// a bad query while half-open doesn't say anything about the cluster, the breaker stays half-open
+		breaker.onError(null, new InvalidKeyspaceException("bad query"), 0, null, null, "");
+		assertEquals(State.HALF_OPEN, breaker.getState());
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.datastax.oss.driver.api.core.DriverTimeoutException;
+import com.datastax.oss.driver.api.core.RequestThrottlingException;
+import com.datastax.oss.driver.api.core.servererrors.InvalidQueryException;
+import com.datastax.oss.driver.api.core.session.throttling.Throttled;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the concurrency limiter without a driver, with requests which only record what the limiter did with them
+ * and a clock that only moves when told to.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class CassandraConcurrencyLimiterTest {
+
+	private static final int INITIAL_LIMIT = 64;
+
+	private final AtomicLong now = new AtomicLong(0);
+	private final CassandraConcurrencyLimiter limiter = new CassandraConcurrencyLimiter("test", now::get, 2);
+
+	private static final class Request implements Throttled {
+		private boolean ready;
+		private boolean delayed;
+		private RequestThrottlingException failure;
+
+		@Override
+		public void onThrottleReady(boolean wasDelayed) {
+			ready = true;
+			delayed = wasDelayed;
+		}
+
+		@Override
+		public void onThrottleFailure(RequestThrottlingException error) {
+			failure = error;
+		}
+	}
+
+	private Request register() {
+		Request request = new Request();
+		limiter.register(request);
+		return request;
+	}
+
+	private Deque<Request> fill() {
+		Deque<Request> inFlight = new ArrayDeque<Request>();
+		for (int i = 0; i < limiter.getLimit(); i++) {
+			Request request = register();
+			assertTrue(request.ready);
+			inFlight.add(request);
+		}
+		return inFlight;
+	}
+
+	/**
+	 * Lets all requests in flight complete after the given latency, each one replaced by a new request at once,
+	 * so that the limiter stays saturated.
+	 */
+	private void respond(Deque<Request> inFlight, long latencyMs, int rounds) {
+		for (int i = 0; i < rounds; i++) {
+			now.addAndGet(TimeUnit.MILLISECONDS.toNanos(latencyMs));
+			for (Request request : new ArrayList<Request>(inFlight)) {
+				inFlight.remove(request);
+				limiter.signalSuccess(request);
+				while (inFlight.size() < limiter.getLimit()) {
+					inFlight.add(register());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testGrowAndShrink() {
+		assertEquals(INITIAL_LIMIT, limiter.getLimit());
+		Deque<Request> inFlight = fill();
+		// stable latency, the limit grows
+		respond(inFlight, 1, 1);
+		int grown = limiter.getLimit();
+		assertTrue(grown > INITIAL_LIMIT);
+		// requests queue up on the cluster, the limit shrinks - one round is fewer responses than the long-term
+		// latency averages over, so it hasn't caught up yet
+		respond(inFlight, 10, 1);
+		int shrunk = limiter.getLimit();
+		assertTrue(shrunk < grown);
+		// the long-term latency catches up with the new latency, and the limit grows again
+		respond(inFlight, 10, 50);
+		assertTrue(limiter.getLimit() > shrunk);
+	}
+
+	@Test
+	public void testNoGrowthWhenIdle() {
+		// only a few requests in flight, the limit isn't what holds them back
+		for (int i = 0; i < 100; i++) {
+			Request request = register();
+			now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+			limiter.signalSuccess(request);
+		}
+		assertEquals(INITIAL_LIMIT, limiter.getLimit());
+	}
+
+	@Test
+	public void testQueueing() {
+		Deque<Request> inFlight = fill();
+		Request queued = register();
+		assertFalse(queued.ready);
+		assertNull(queued.failure);
+		// a response frees a slot for the oldest queued request
+		limiter.signalSuccess(inFlight.poll());
+		assertTrue(queued.ready);
+		assertTrue(queued.delayed);
+	}
+
+	@Test
+	public void testRejection() {
+		fill();
+		List<Request> queued = new ArrayList<Request>();
+		queued.add(register());
+		queued.add(register());
+		Request rejected = register();
+		assertFalse(rejected.ready);
+		assertNotNull(rejected.failure);
+		// closing the session fails the queued requests
+		limiter.close();
+		for (Request request : queued) {
+			assertFalse(request.ready);
+			assertNotNull(request.failure);
+		}
+		assertNotNull(register().failure);
+	}
+
+	@Test
+	public void testReleaseOnError() {
+		Deque<Request> inFlight = fill();
+		Request queued = register();
+		// a bad query frees its slot and doesn't shrink the limit
+		limiter.signalError(inFlight.poll(), new InvalidQueryException(null, "bad query"));
+		assertTrue(queued.ready);
+		inFlight.add(queued);
+		assertTrue(limiter.getLimit() >= INITIAL_LIMIT);
+		// a timeout frees its slot and shrinks the limit by 10%
+		int limit = limiter.getLimit();
+		limiter.signalError(inFlight.poll(), new DriverTimeoutException("timeout"));
+		assertTrue(limiter.getLimit() < limit);
+		assertTrue(limiter.getLimit() >= (int) (limit * 0.9) - 1);
+	}
+
+	@Test
+	public void testReleaseOnTimeout() {
+		Deque<Request> inFlight = fill();
+		Request queued1 = register();
+		Request queued2 = register();
+		// a queued request which times out leaves the queue without taking a slot
+		limiter.signalTimeout(queued1);
+		limiter.signalTimeout(inFlight.poll());
+		assertEquals((int) (INITIAL_LIMIT * 0.9), limiter.getLimit());
+		assertFalse(queued1.ready);
+		assertFalse(queued2.ready);
+		// the limit went down, so a slot is only freed once more requests complete
+		int completed = 0;
+		while (!queued2.ready) {
+			limiter.signalSuccess(inFlight.poll());
+			completed++;
+		}
+		assertTrue(completed > 1);
+		assertFalse(queued1.ready);
+	}
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.erudika.para.core.ParaObject;
+import com.erudika.para.core.Sysprop;
+import com.erudika.para.core.utils.ParaObjectUtils;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.apache.commons.lang3.RandomStringUtils;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.utility.DockerImageName;
+
+/**
+ * A YCSB-style load test for {@link CassandraDAO}. Worker threads run a mix of operations for a fixed time,
+ * on keys picked with a uniform or zipfian distribution, and the throughput and latency percentiles of each
+ * operation are written to a JSON report. It isn't part of the normal build, run it with:
+ * <pre>
+ * mvn test -Pbenchmark -Dbench.target=memory -Dbench.threads=32 -Dbench.duration_sec=60
+ * </pre>
+ * Targets are "memory" (an {@link InMemoryCqlSession}), "container" (a Cassandra container, requires Docker)
+ * or "cassandra" (the cluster configured with the usual {@code para.cassandra.*} properties).
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class CassandraDAOBenchmark {
+
+	private static final Logger logger = LoggerFactory.getLogger(CassandraDAOBenchmark.class);
+	private static final String APPID = "benchmark";
+	private static final String[] OPERATIONS = {"read", "update", "create", "readAll", "createAll"};
+
+	private final String target = System.getProperty("bench.target", "memory");
+	private final int records = Integer.getInteger("bench.record_count", 10000);
+	private final int threads = Integer.getInteger("bench.threads", 16);
+	private final boolean virtualThreads = Boolean.getBoolean("bench.virtual_threads");
+	private final int durationSec = Integer.getInteger("bench.duration_sec", 30);
+	private final int objectSize = Integer.getInteger("bench.object_size", 1024);
+	private final int batchSize = Integer.getInteger("bench.batch_size", 10);
+	private final String distribution = System.getProperty("bench.distribution", "zipfian");
+	private final long latencyMs = Long.getLong("bench.latency_ms", 0);
+	private final double[] mix = {
+		Double.parseDouble(System.getProperty("bench.read", "0.5")),
+		Double.parseDouble(System.getProperty("bench.update", "0.4")),
+		Double.parseDouble(System.getProperty("bench.create", "0.05")),
+		Double.parseDouble(System.getProperty("bench.read_all", "0.05")),
+		Double.parseDouble(System.getProperty("bench.create_all", "0"))
+	};
+	private final Path output = Paths.get(System.getProperty("bench.output", "target/cassandra-benchmark.json"));
+
+	@Test
+	public void runWorkload() throws Exception {
+		GenericContainer<?> container = setUp();
+		try {
+			CassandraDAO dao = new CassandraDAO();
+			CassandraUtils.createTable(APPID);
+			load(dao);
+			Map<String, Object> report = run(dao);
+			Files.createDirectories(output.toAbsolutePath().getParent());
+			Files.writeString(output, ParaObjectUtils.getJsonWriter().writeValueAsString(report));
+			logger.info("Benchmark results written to {}:\n{}", output.toAbsolutePath(),
+					ParaObjectUtils.getJsonWriter().writeValueAsString(report.get("operations")));
+			assertTrue(((Number) report.get("total_ops")).longValue() > 0);
+		} finally {
+			CassandraUtils.deleteTable(APPID);
+			CassandraUtils.shutdownClient();
+			if (container != null) {
+				container.stop();
+			}
+		}
+	}
+
+	private GenericContainer<?> setUp() {
+		System.setProperty("para.app_name", "para-benchmark");
+		System.setProperty("para.cluster_name", "para-benchmark");
+		if ("memory".equals(target)) {
+			CassandraUtils.setClient(null, new InMemoryCqlSession().withLatency(latencyMs).getSession());
+		} else if ("container".equals(target)) {
+			GenericContainer<?> container = new GenericContainer<>(DockerImageName.parse("cassandra:4.1.10")).
+					withExposedPorts(9042);
+			container.start();
+			System.setProperty("para.cassandra.hosts", container.getHost());
+			System.setProperty("para.cassandra.port", String.valueOf(container.getMappedPort(9042)));
+			return container;
+		}
+		return null;
+	}
+
+	private void load(CassandraDAO dao) {
+		long start = System.nanoTime();
+		List<ParaObject> batch = new ArrayList<>(100);
+		for (int i = 0; i < records; i++) {
+			batch.add(newObject(key(i)));
+			if (batch.size() == 100 || i == records - 1) {
+				dao.createAll(APPID, batch);
+				batch = new ArrayList<>(100);
+			}
+		}
+		logger.info("Loaded {} objects in {}ms.", records, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+
+	private Map<String, Object> run(CassandraDAO dao) throws InterruptedException {
+		KeyGenerator keys = "uniform".equals(distribution) ? new KeyGenerator(records) : new ZipfianGenerator(records);
+		Histogram[] histograms = new Histogram[OPERATIONS.length];
+		AtomicLong[] errors = new AtomicLong[OPERATIONS.length];
+		for (int i = 0; i < OPERATIONS.length; i++) {
+			histograms[i] = new Histogram();
+			errors[i] = new AtomicLong();
+		}
+		AtomicLong created = new AtomicLong(records);
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSec);
+		ExecutorService workers = virtualThreads ? Executors.newVirtualThreadPerTaskExecutor() :
+				Executors.newFixedThreadPool(threads);
+		for (int t = 0; t < threads; t++) {
+			workers.execute(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				while (System.nanoTime() < deadline) {
+					int op = pickOperation(random.nextDouble());
+					long start = System.nanoTime();
+					try {
+						execute(dao, op, keys, created, random);
+						histograms[op].record(System.nanoTime() - start);
+					} catch (Exception e) {
+						errors[op].incrementAndGet();
+					}
+				}
+			});
+		}
+		workers.shutdown();
+		workers.awaitTermination(durationSec + 60L, TimeUnit.SECONDS);
+
+		Map<String, Object> report = new LinkedHashMap<>();
+		Map<String, Object> config = new LinkedHashMap<>();
+		config.put("target", target);
+		config.put("record_count", records);
+		config.put("threads", threads);
+		config.put("virtual_threads", virtualThreads);
+		config.put("duration_sec", durationSec);
+		config.put("object_size", objectSize);
+		config.put("batch_size", batchSize);
+		config.put("distribution", distribution);
+		config.put("latency_ms", latencyMs);
+		config.put("mix", mix);
+		report.put("config", config);
+		Map<String, Object> operations = new LinkedHashMap<>();
+		long total = 0;
+		for (int i = 0; i < OPERATIONS.length; i++) {
+			Histogram h = histograms[i];
+			if (h.count() > 0 || errors[i].get() > 0) {
+				Map<String, Object> stats = new LinkedHashMap<>();
+				stats.put("count", h.count());
+				stats.put("errors", errors[i].get());
+				stats.put("ops_per_sec", Math.round(h.count() / (double) durationSec));
+				stats.put("p50_ms", h.percentileMs(50));
+				stats.put("p99_ms", h.percentileMs(99));
+				stats.put("p999_ms", h.percentileMs(99.9));
+				stats.put("max_ms", h.percentileMs(100));
+				operations.put(OPERATIONS[i], stats);
+				total += h.count();
+			}
+		}
+		report.put("operations", operations);
+		report.put("total_ops", total);
+		report.put("ops_per_sec", Math.round(total / (double) durationSec));
+		return report;
+	}
+
+	private void execute(CassandraDAO dao, int op, KeyGenerator keys, AtomicLong created, Random random) {
+		switch (OPERATIONS[op]) {
+			case "read":
+				dao.read(APPID, key(keys.next(random)));
+				break;
+			case "update":
+				dao.update(APPID, newObject(key(keys.next(random))));
+				break;
+			case "create":
+				dao.create(APPID, newObject(key(created.getAndIncrement())));
+				break;
+			case "readAll":
+				List<String> ids = new ArrayList<>(batchSize);
+				for (int i = 0; i < batchSize; i++) {
+					ids.add(key(keys.next(random)));
+				}
+				dao.readAll(APPID, ids, true);
+				break;
+			default:
+				List<ParaObject> objects = new ArrayList<>(batchSize);
+				for (int i = 0; i < batchSize; i++) {
+					objects.add(newObject(key(created.getAndIncrement())));
+				}
+				dao.createAll(APPID, objects);
+		}
+	}
+
+	private int pickOperation(double r) {
+		double sum = 0;
+		for (double weight : mix) {
+			sum += weight;
+		}
+		double x = r * sum;
+		for (int i = 0; i < mix.length; i++) {
+			x -= mix[i];
+			if (x < 0) {
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	private ParaObject newObject(String id) {
+		Sysprop s = new Sysprop(id);
+		s.setName(id);
+		s.addProperty("data", RandomStringUtils.insecure().nextAlphanumeric(objectSize));
+		return s;
+	}
+
+	private static String key(long i) {
+		return "bench" + i;
+	}
+
+	/**
+	 * Picks keys uniformly.
+	 */
+	private static class KeyGenerator {
+		protected final long items;
+
+		KeyGenerator(long items) {
+			this.items = Math.max(1, items);
+		}
+
+		long next(Random random) {
+			return (long) (random.nextDouble() * items);
+		}
+	}
+
+	/**
+	 * Picks keys with a zipfian distribution, where a few keys are very popular, like YCSB does.
+	 * Popular keys are scattered over the key space, instead of being the first ones.
+	 * See "Quickly Generating Billion-Record Synthetic Databases", Gray et al, SIGMOD 1994.
+	 */
+	private static final class ZipfianGenerator extends KeyGenerator {
+		private static final double THETA = 0.99;
+		private final double alpha;
+		private final double zetan;
+		private final double eta;
+
+		ZipfianGenerator(long items) {
+			super(items);
+			double zeta2 = zeta(2);
+			this.zetan = zeta(this.items);
+			this.alpha = 1.0 / (1.0 - THETA);
+			this.eta = (1 - Math.pow(2.0 / this.items, 1 - THETA)) / (1 - zeta2 / zetan);
+		}
+
+		private static double zeta(long n) {
+			double sum = 0;
+			for (long i = 1; i <= n; i++) {
+				sum += 1 / Math.pow(i, THETA);
+			}
+			return sum;
+		}
+
+		@Override
+		long next(Random random) {
+			double u = random.nextDouble();
+			double uz = u * zetan;
+			long rank;
+			if (uz < 1.0) {
+				rank = 0;
+			} else if (uz < 1.0 + Math.pow(0.5, THETA)) {
+				rank = 1;
+			} else {
+				rank = (long) (items * Math.pow(eta * u - eta + 1, alpha));
+			}
+			// FNV-1a hash of the rank
+			long hash = 0xcbf29ce484222325L;
+			for (int i = 0; i < 8; i++) {
+				hash = (hash ^ ((rank >>> (i * 8)) & 0xff)) * 0x100000001b3L;
+			}
+			return Math.floorMod(hash, items);
+		}
+	}
+
+	/**
+	 * A lock-free latency histogram with logarithmic buckets, each 1% wider than the previous one,
+	 * so percentiles are accurate to about 1%, from 1 microsecond to over an hour.
+	 */
+	private static final class Histogram {
+		private static final double LOG_BASE = Math.log(1.01);
+		private final AtomicLongArray buckets = new AtomicLongArray(2200);
+
+		void record(long nanos) {
+			long micros = Math.max(1, nanos / 1000);
+			buckets.incrementAndGet((int) Math.min(buckets.length() - 1, Math.round(Math.log(micros) / LOG_BASE)));
+		}
+
+		long count() {
+			long count = 0;
+			for (int i = 0; i < buckets.length(); i++) {
+				count += buckets.get(i);
+			}
+			return count;
+		}
+
+		double percentileMs(double percentile) {
+			long count = count();
+			long rank = (long) Math.ceil(count * percentile / 100.0);
+			long seen = 0;
+			for (int i = 0; i < buckets.length(); i++) {
+				seen += buckets.get(i);
+				if (seen >= rank && seen > 0) {
+					return Math.round(Math.pow(1.01, i)) / 1000.0;
+				}
+			}
+			return 0;
+		}
+	}
+}
@@ -18,8 +18,14 @@
 package com.erudika.para.server.persistence;
 
 import com.datastax.oss.driver.api.core.CqlSession;
+import com.erudika.para.core.Sysprop;
+import java.util.Arrays;
+import java.util.Map;
 import org.junit.jupiter.api.AfterAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 import org.junit.jupiter.api.BeforeAll;
@@ -99,6 +105,27 @@ public class CassandraDAOIT extends DAOTest {
 		assertFalse(CassandraUtils.deleteTable(badAppid));
 	}
 
+	@Test
+	public void testReadJson() {
+		CassandraDAO cdao = (CassandraDAO) dao();
+		Sysprop s = new Sysprop("json-test");
+		s.setName("before");
+		cdao.create(appid1, s);
+		s.setName("after");
+		cdao.update(appid1, s);
+
+		String json = cdao.readJson(appid1, s.getId());
+		assertNotNull(json);
+		assertTrue(json.contains("\"after\""));
+		assertFalse(json.contains("\"before\""));
+		assertNull(cdao.readJson(appid1, "json-test-missing"));
+
+		Map<String, String> all = cdao.readAllJson(appid1, Arrays.asList(s.getId(), "json-test-missing"));
+		assertEquals(1, all.size());
+		assertTrue(all.get(s.getId()).contains("\"after\""));
+		cdao.delete(appid1, s);
+	}
+
 	private static void waitForCassandra() throws InterruptedException {
 //		for (int i = 0; i < MAX_CONNECT_ATTEMPTS; i++) {
 			Thread.sleep(RETRY_DELAY_MS);
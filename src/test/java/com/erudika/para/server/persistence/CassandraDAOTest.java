@@ -0,0 +1,738 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.erudika.para.core.Sysprop;
+import com.erudika.para.core.utils.Pager;
+import com.erudika.para.core.utils.Para;
+import com.erudika.para.core.utils.ParaObjectUtils;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.jupiter.api.AfterAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the DAO tests against an in-memory session, without a Cassandra cluster.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class CassandraDAOTest extends DAOTest {
+
+	private static final String ROOT_APP_NAME = "para-test";
+	private static final InMemoryCqlSession SESSION = new InMemoryCqlSession();
+	private static final InMemoryCqlSession REMOTE_SESSION = new InMemoryCqlSession();
+
+	static {
+		// features are read when CassandraUtils is loaded, so they must be enabled before that
+		System.setProperty("para.cassandra.lookup_fields", "name");
+		System.setProperty("para.cassandra.tiering_enabled", "true");
+		System.setProperty("para.cassandra.field_updates_enabled", "true");
+		System.setProperty("para.cassandra.changelog_enabled", "true");
+		System.setProperty("para.cassandra.counts_enabled", "true");
+		System.setProperty("para.cassandra.chunking_enabled", "true");
+		System.setProperty("para.cassandra.chunk_threshold_kb", "2");
+		System.setProperty("para.cassandra.chunk_size_kb", "1");
+		// a small budget, so that pages of larger objects are fetched in several parts
+		System.setProperty("para.cassandra.page_budget_kb", "4");
+		System.setProperty("para.cassandra.field_updates_cache_mb", "1");
+		System.setProperty("para.cassandra.changelog_lag_ms", "200");
+		// one app is on a second cluster, with its own keyspace
+		System.setProperty("para.cassandra.app_clusters", "test-remote:remote");
+		System.setProperty("para.cassandra.cluster.remote.keyspace", "remote_ks");
+		System.setProperty("para.cassandra.cluster.remote.dc_replication", "dc1:3, dc2:2");
+		// table options of the main tables
+		System.setProperty("para.cassandra.app_table_profiles", "test-ttl:time_series:3600,test-read:read_heavy");
+		System.setProperty("para.cassandra.table_options", "gc_grace_seconds = 86400");
+	}
+
+	public CassandraDAOTest() {
+		super(new CassandraDAO());
+	}
+
+	@BeforeAll
+	public static void setUpClass() {
+		System.setProperty("para.app_name", ROOT_APP_NAME);
+		System.setProperty("para.cluster_name", ROOT_APP_NAME);
+		CassandraUtils.setClient(null, SESSION.getSession());
+		CassandraUtils.setClient("remote", REMOTE_SESSION.getSession());
+		CassandraUtils.createTable(ROOT_APP_NAME);
+		CassandraUtils.createTable(appid1);
+		CassandraUtils.createTable(appid2);
+		CassandraUtils.createTable(appid3);
+	}
+
+	@AfterAll
+	public static void tearDownClass() {
+		CassandraUtils.shutdownClient();
+		SESSION.clear();
+		REMOTE_SESSION.clear();
+	}
+
+	@Test
+	public void testReadPageJson() {
+		CassandraDAO cdao = (CassandraDAO) dao();
+		String appid = "test-paging";
+		CassandraUtils.createTable(appid);
+		for (int i = 0; i < 25; i++) {
+			cdao.create(appid, new Sysprop("page-" + i));
+		}
+		Pager pager = new Pager(10);
+		int total = 0;
+		List<String> page;
+		do {
+			page = cdao.readPageJson(appid, pager);
+			total += page.size();
+		} while (!page.isEmpty());
+		assertEquals(25, total);
+		CassandraUtils.deleteTable(appid);
+	}
+
+	@Test
+	public void testInjectedFailure() {
+		CassandraDAO cdao = (CassandraDAO) dao();
+		Sysprop s = new Sysprop("failure-test");
+		cdao.create(appid1, s);
+		SESSION.failNext(1);
+		assertNull(cdao.readJson(appid1, s.getId()));
+		assertNotNull(cdao.readJson(appid1, s.getId()));
+		assertTrue(SESSION.getRequestCount() > 0);
+	}
+
+	@Test
+	public void testTablesOfExistingApp() {
+		CassandraDAO cdao = (CassandraDAO) dao();
+		String appid = "test-existing";
+		// an app created before lookups and field updates were enabled has only the main table and its first columns
+		String table = CassandraUtils.getTableNameForAppid(appid);
+		SESSION.getSession().execute("CREATE TABLE " + table + " (id text PRIMARY KEY, json text, json_updates text);");
+		assertFalse(tableExists(CassandraUtils.getLookupTableNameForAppid(appid)));
+		assertFalse(tableExists(CassandraUtils.getColdTableNameForAppid(appid)));
+		assertFalse(SESSION.hasColumn(table, "field_updates"));
+		assertFalse(CassandraUtils.createTable(appid));
+		assertTrue(tableExists(CassandraUtils.getLookupTableNameForAppid(appid)));
+		assertTrue(tableExists(CassandraUtils.getColdTableNameForAppid(appid)));
+		assertTrue(SESSION.hasColumn(table, "field_updates"));
+		// the column is only added once
+		int requests = SESSION.getRequestCount();
+		assertFalse(CassandraUtils.createTable(appid));
+		assertEquals(requests, SESSION.getRequestCount());
+
+		Sysprop s = new Sysprop("existing-1");
+		s.setName("existing-name");
+		cdao.create(appid, s);
+		assertEquals(s.getId(), cdao.readIdByField(appid, "name", "existing-name"));
+		Sysprop s2 = new Sysprop("existing-2");
+		cdao.create(appid, s2);
+		cdao.delete(appid, s);
+		assertNull(cdao.read(appid, s.getId()));
+		cdao.deleteAll(appid, Arrays.asList(s2));
+		assertNull(cdao.read(appid, s2.getId()));
+		CassandraUtils.deleteTable(appid);
+	}
+
+	@Test
+	public void testLookupUpdate() {
+		CassandraDAO cdao = (CassandraDAO) dao();
+		Sysprop s = new Sysprop("lookup-update");
+		s.setName("lookup-old");
+		cdao.create(appid1, s);
+		// the old values come from the last read, so the only request is the batch with the update, its lookups
+		// and its change record
+		Sysprop read = cdao.read(appid1, s.getId());
+		read.setName("lookup-new");
+		int requests = SESSION.getRequestCount();
+		cdao.update(appid1, read);
+		assertEquals(1, SESSION.getRequestCount() - requests);
+		assertNull(cdao.readIdByField(appid1, "name", "lookup-old"));
+		assertEquals(s.getId(), cdao.readIdByField(appid1, "name", "lookup-new"));
+		// the update is kept in place of the last read
+		s.setName("lookup-other");
+		cdao.update(appid1, s);
+		assertNull(cdao.readIdByField(appid1, "name", "lookup-new"));
+		assertEquals(s.getId(), cdao.readIdByField(appid1, "name", "lookup-other"));
+		// without a read, the stored object is read first
+		Sysprop s2 = new Sysprop("lookup-update-2");
+		s2.setName("lookup-old-2");
+		cdao.create(appid1, s2);
+		s2.setName("lookup-new-2");
+		requests = SESSION.getRequestCount();
+		cdao.update(appid1, s2);
+		assertEquals(2, SESSION.getRequestCount() - requests);
+		assertNull(cdao.readIdByField(appid1, "name", "lookup-old-2"));
+		assertEquals(s2.getId(), cdao.readIdByField(appid1, "name", "lookup-new-2"));
+		cdao.deleteAll(appid1, Arrays.asList(s, s2));
+		assertNull(cdao.readIdByField(appid1, "name", "lookup-other"));
+	}
+
+	@Test
+	public void testAppOnOtherCluster() {
+		CassandraDAO cdao = (CassandraDAO) dao();
+		String appid = "test-remote";
+		String table = CassandraUtils.getTableNameForAppid(appid);
+		assertEquals("remote", CassandraUtils.getClusterForAppid(appid));
+		assertTrue(CassandraUtils.createTable(appid));
+		assertEquals("{'class': 'NetworkTopologyStrategy', 'dc1': 3, 'dc2': 2}", REMOTE_SESSION.replicationOf("remote_ks"));
+		// the tables are created in the keyspace of the other cluster, and only there
+		assertEquals("remote_ks", REMOTE_SESSION.keyspaceOf(table));
+		assertEquals("remote_ks", REMOTE_SESSION.keyspaceOf(CassandraUtils.getLookupTableNameForAppid(appid)));
+		assertEquals("remote_ks", REMOTE_SESSION.keyspaceOf(CassandraUtils.COUNTS_TABLE));
+		assertFalse(tableExists(table));
+
+		Sysprop s = new Sysprop("remote-1");
+		s.setName("remote-name");
+		int requests = SESSION.getRequestCount();
+		cdao.create(appid, s);
+		assertEquals(1, REMOTE_SESSION.size(table));
+		assertNotNull(cdao.read(appid, s.getId()));
+		assertEquals(s.getId(), cdao.readIdByField(appid, "name", "remote-name"));
+		assertEquals(1, cdao.countObjects(appid, null));
+		cdao.delete(appid, s);
+		assertNull(cdao.read(appid, s.getId()));
+		assertEquals(0, REMOTE_SESSION.size(table));
+		assertEquals(requests, SESSION.getRequestCount());
+		CassandraUtils.deleteTable(appid);
+		assertNull(REMOTE_SESSION.keyspaceOf(table));
+	}
+
+	@Test
+	public void testReplication() {
+		assertEquals("{'class': 'SimpleStrategy', 'replication_factor': " +
+				Para.getConfig().cassandraReplicationFactor() + "}",
+				SESSION.replicationOf(Para.getConfig().cassandraKeyspace()));
+		assertEquals("{'class': 'SimpleStrategy', 'replication_factor': 3}", CassandraUtils.getReplicationOptions(" ", 3));
+		// invalid entries are skipped
+		assertEquals("{'class': 'NetworkTopologyStrategy', 'dc1': 3}",
+				CassandraUtils.getReplicationOptions("dc1:3,dc2,dc3:x", 1));
+		assertEquals("{'class': 'SimpleStrategy', 'replication_factor': 1}", CassandraUtils.getReplicationOptions("dc2", 1));
+	}
+
+	@Test
+	public void testTableOptions() {
+		CassandraDAO cdao = (CassandraDAO) dao();
+		String ttlApp = "test-ttl";
+		String readApp = "test-read";
+		String ttlTable = CassandraUtils.getTableNameForAppid(ttlApp);
+		String readTable = CassandraUtils.getTableNameForAppid(readApp);
+		CassandraUtils.createTable(ttlApp);
+		CassandraUtils.createTable(readApp);
+		// the profile of the app, its TTL, then the options of all tables
+		assertEquals("compaction = {'class': 'TimeWindowCompactionStrategy', 'compaction_window_unit': 'DAYS', " +
+				"'compaction_window_size': 1} AND default_time_to_live = 3600 AND gc_grace_seconds = 86400",
+				SESSION.optionsOf(ttlTable));
+		assertTrue(SESSION.optionsOf(readTable).startsWith("compaction = {'class': 'LeveledCompactionStrategy'}"));
+		assertFalse(SESSION.optionsOf(readTable).contains("default_time_to_live"));
+		assertEquals("gc_grace_seconds = 86400", SESSION.optionsOf(CassandraUtils.getTableNameForAppid(appid1)));
+		// the tables next to the main table have their own options
+		assertFalse(SESSION.optionsOf(CassandraUtils.getLookupTableNameForAppid(ttlApp)).contains("default_time_to_live"));
+		assertTrue(SESSION.optionsOf(CassandraUtils.getColdTableNameForAppid(ttlApp)).contains("DeflateCompressor"));
+
+		// only the objects of the app with a TTL expire
+		Sysprop expiring = new Sysprop("ttl-1");
+		cdao.create(ttlApp, expiring);
+		assertEquals(3600, SESSION.ttlOf(ttlTable, expiring.getId()));
+		cdao.update(ttlApp, expiring);
+		assertEquals(3600, SESSION.ttlOf(ttlTable, expiring.getId()));
+		Sysprop kept = new Sysprop("ttl-2");
+		cdao.create(readApp, kept);
+		assertEquals(0, SESSION.ttlOf(readTable, kept.getId()));
+		CassandraUtils.deleteTable(ttlApp);
+		CassandraUtils.deleteTable(readApp);
+	}
+
+	@Test
+	public void testChunks() {
+		CassandraDAO cdao = (CassandraDAO) dao();
+		String appid = "test-large";
+		String chunksTable = CassandraUtils.getChunksTableNameForAppid(appid);
+		CassandraUtils.createTable(appid);
+		Sysprop s = new Sysprop("chunked");
+		s.addProperty("text", StringUtils.repeat("x", 5000));
+		cdao.create(appid, s);
+		int chunks = SESSION.size(chunksTable);
+		assertTrue(chunks > 4);
+		assertEquals(5000, ((String) ((Sysprop) cdao.read(appid, s.getId())).getProperty("text")).length());
+		// fewer chunks replace the old ones
+		s.addProperty("text", StringUtils.repeat("y", 3000));
+		cdao.create(appid, s);
+		assertTrue(SESSION.size(chunksTable) > 2 && SESSION.size(chunksTable) < chunks);
+		assertEquals(StringUtils.repeat("y", 3000), ((Sysprop) cdao.read(appid, s.getId())).getProperty("text"));
+		// the chunks of an object which isn't stored in chunks anymore are deleted
+		s.addProperty("text", "small");
+		cdao.create(appid, s);
+		assertEquals(0, SESSION.size(chunksTable));
+		assertEquals("small", ((Sysprop) cdao.read(appid, s.getId())).getProperty("text"));
+		CassandraUtils.deleteTable(appid);
+	}
+
+	@Test
+	public void testCounts() {
+		CassandraDAO cdao = (CassandraDAO) dao();
+		String appid = "test-counts";
+		CassandraUtils.createTable(appid);
+		Sysprop s1 = new Sysprop("count-1");
+		Sysprop s2 = new Sysprop("count-2");
+		Sysprop s3 = new Sysprop("count-3");
+		cdao.create(appid, s1);
+		assertEquals(1, cdao.countObjects(appid, null));
+		// overwriting an object doesn't count it again
+		cdao.create(appid, s1);
+		cdao.createAll(appid, Arrays.asList(s1, s2, s2));
+		assertEquals(2, cdao.countObjects(appid, null));
+		assertEquals(2, cdao.countObjects(appid, s1.getType()));
+		// unless its type changed
+		s2.setType("othertype");
+		cdao.create(appid, s2);
+		cdao.createAll(appid, Arrays.asList(s3));
+		assertEquals(3, cdao.countObjects(appid, null));
+		assertEquals(2, cdao.countObjects(appid, s1.getType()));
+		assertEquals(1, cdao.countObjects(appid, "othertype"));
+		assertEquals(2, cdao.countObjectsByType(appid).size());
+
+		// deleting an object which doesn't exist doesn't count it, the stored type is counted down
+		cdao.delete(appid, new Sysprop("count-missing"));
+		s2.setType("sysprop");
+		cdao.delete(appid, s2);
+		cdao.delete(appid, s2);
+		assertEquals(2, cdao.countObjects(appid, null));
+		assertEquals(0, cdao.countObjects(appid, "othertype"));
+		cdao.deleteAll(appid, Arrays.asList(s1, s1, new Sysprop("count-missing")));
+		assertEquals(1, cdao.countObjects(appid, null));
+		assertEquals(1, cdao.countObjects(appid, s3.getType()));
+		CassandraUtils.deleteTable(appid);
+	}
+
+	@Test
+	public void testColdTier() throws IOException {
+		CassandraDAO cdao = (CassandraDAO) dao();
+		String appid = "test-cold";
+		String coldTable = CassandraUtils.getColdTableNameForAppid(appid);
+		CassandraUtils.createTable(appid);
+		Sysprop old = new Sysprop("cold-1");
+		old.setTimestamp(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(400));
+		Sysprop old2 = new Sysprop("cold-2");
+		old2.setTimestamp(old.getTimestamp());
+		Sysprop recent = new Sysprop("hot-1");
+		cdao.createAll(appid, Arrays.asList(old, old2, recent));
+		assertEquals(2, CassandraTiering.archive(appid));
+		assertEquals(2, SESSION.size(coldTable));
+
+		// reads fall back to the cold table, pages include it after the main table
+		List<String> ids = Arrays.asList(old.getId(), recent.getId(), "missing");
+		assertNotNull(cdao.read(appid, old.getId()));
+		assertNotNull(cdao.readJson(appid, old.getId()));
+		assertEquals(2, cdao.readAll(appid, ids, true).size());
+		assertEquals(2, cdao.readAllJson(appid, ids).size());
+		assertEquals(3, cdao.readPageJson(appid, new Pager(10)).size());
+
+		Path dir = Files.createTempDirectory("para-export");
+		assertEquals(3, CassandraExporter.exportTable(appid, dir, false));
+
+		cdao.delete(appid, old);
+		assertNull(cdao.read(appid, old.getId()));
+		cdao.deleteAll(appid, Arrays.asList(old2));
+		assertNull(cdao.readJson(appid, old2.getId()));
+		assertEquals(0, SESSION.size(coldTable));
+		CassandraUtils.deleteTable(appid);
+	}
+
+	@Test
+	public void testReadPageArchived() {
+		CassandraDAO cdao = (CassandraDAO) dao();
+		String appid = "test-cold-page";
+		CassandraUtils.createTable(appid);
+		List<Sysprop> objects = new ArrayList<Sysprop>();
+		for (int i = 0; i < 5; i++) {
+			Sysprop s = new Sysprop("cold-page-" + i);
+			s.setName("before");
+			if (i < 3) {
+				s.setTimestamp(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(400));
+			}
+			objects.add(s);
+		}
+		cdao.createAll(appid, objects);
+		assertEquals(3, CassandraTiering.archive(appid));
+		// the main row of an archived object which is updated only holds the update
+		Sysprop updated = new Sysprop(objects.get(0).getId());
+		updated.setName("after");
+		cdao.update(appid, updated);
+
+		Set<String> ids = new HashSet<String>();
+		Pager pager = new Pager(2);
+		List<Sysprop> page;
+		while (!(page = cdao.readPage(appid, pager)).isEmpty()) {
+			for (Sysprop s : page) {
+				assertTrue(ids.add(s.getId()), s.getId() + " was read twice");
+				assertEquals(s.getId().equals(updated.getId()) ? "after" : "before", s.getName());
+			}
+		}
+		assertEquals(5, ids.size());
+		assertEquals(5, pager.getCount());
+		assertEquals(5, cdao.readPageJson(appid, new Pager(10)).size());
+		CassandraUtils.deleteTable(appid);
+	}
+
+	@Test
+	public void testRestore() {
+		CassandraDAO cdao = (CassandraDAO) dao();
+		String appid = "test-restore";
+		String coldTable = CassandraUtils.getColdTableNameForAppid(appid);
+		CassandraUtils.createTable(appid);
+		Sysprop s = new Sysprop("restore-1");
+		s.setName("before");
+		s.setTimestamp(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(400));
+		cdao.create(appid, s);
+		assertEquals(1, CassandraTiering.archive(appid));
+		// only field_updates are written to the main table, there is no write time to restore the object with
+		Sysprop updated = new Sysprop(s.getId());
+		updated.setName("after");
+		cdao.update(appid, updated);
+		assertEquals(0, CassandraTiering.archive(appid));
+		assertEquals(0, SESSION.size(coldTable));
+		assertEquals("after", cdao.<Sysprop>read(appid, s.getId()).getName());
+
+		long now = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+		assertEquals(now, CassandraTiering.getRestoreTimestamp(0, null, now));
+		assertEquals(now, CassandraTiering.getRestoreTimestamp(0, "{\"name\":\"after\"}", now));
+		assertEquals(now, CassandraTiering.getRestoreTimestamp(now - 1000, "{\"name\":\"after\"}", now));
+		assertEquals(now - 1000, CassandraTiering.getRestoreTimestamp(now - 1000, null, now));
+		CassandraUtils.deleteTable(appid);
+	}
+
+	@Test
+	public void testBulkLoaderFailures() throws IOException {
+		CassandraDAO cdao = (CassandraDAO) dao();
+		String appid = "test-bulk";
+		CassandraUtils.createTable(appid);
+		Path file = Files.createTempDirectory("para-import").resolve("objects.ndjson");
+		Files.write(file, Arrays.asList("{\"id\":\"bulk-1\",\"type\":\"sysprop\"}", "not json",
+				"{\"id\":\"bulk-2\",\"type\":\"sysprop\"}"));
+		// one insert fails, the failed objects can be imported again from the ".failed" file
+		SESSION.failNext(1);
+		assertEquals(1, CassandraBulkLoader.importFile(appid, file));
+		Path failed = Paths.get(file + ".failed");
+		assertEquals(2, Files.readAllLines(failed).size());
+		assertEquals(1, CassandraBulkLoader.importFile(appid, failed));
+		assertEquals(Arrays.asList("not json"), Files.readAllLines(Paths.get(failed + ".failed")));
+		assertNotNull(cdao.readJson(appid, "bulk-1"));
+		assertNotNull(cdao.readJson(appid, "bulk-2"));
+		assertFalse(Files.exists(Paths.get(file + ".checkpoint")));
+		CassandraUtils.deleteTable(appid);
+	}
+
+	@Test
+	public void testReadBatcherFailure() throws Exception {
+		CassandraDAO cdao = (CassandraDAO) dao();
+		CassandraReadBatcher batcher = new CassandraReadBatcher();
+		String appid = "test-batcher";
+		CassandraUtils.createTable(appid);
+		Sysprop s = new Sysprop("batched-1");
+		cdao.create(appid, s);
+		// the query can't be prepared, every read in the batch fails instead of waiting forever
+		SESSION.failNextPrepare(Integer.MAX_VALUE);
+		CompletableFuture<Row> read1 = batcher.read(appid, s.getId());
+		CompletableFuture<Row> read2 = batcher.read(appid, "missing");
+		assertThrows(ExecutionException.class, () -> read1.get(5, TimeUnit.SECONDS));
+		assertThrows(ExecutionException.class, () -> read2.get(5, TimeUnit.SECONDS));
+		SESSION.failNextPrepare(0);
+		assertNotNull(batcher.read(appid, s.getId()).get(5, TimeUnit.SECONDS));
+		CassandraUtils.deleteTable(appid);
+	}
+
+	@Test
+	public void testFieldUpdates() {
+		CassandraDAO cdao = (CassandraDAO) dao();
+		String table = CassandraUtils.getTableNameForAppid(appid1);
+		Sysprop s = new Sysprop("field-updates");
+		s.setName("field-1");
+		s.addProperty("data", StringUtils.repeat('x', 1000));
+		cdao.create(appid1, s);
+		// only the fields which changed since the read are written
+		Sysprop read = cdao.read(appid1, s.getId());
+		read.setName("field-2");
+		cdao.update(appid1, read);
+		Map<String, String> fields = SESSION.getSession().execute("SELECT field_updates FROM " + table + " WHERE id = ?;",
+				s.getId()).one().getMap(0, String.class, String.class);
+		assertTrue(fields.containsKey("name"));
+		assertFalse(fields.containsKey("properties"));
+		assertEquals("field-2", ((Sysprop) cdao.read(appid1, s.getId())).getName());
+		assertTrue(cdao.readJson(appid1, s.getId()).contains("field-2"));
+
+		// the object is replaced after the read, so the next update writes all fields, not only the changed ones
+		Sysprop read2 = cdao.read(appid1, s.getId());
+		Sysprop other = new Sysprop(s.getId());
+		other.setName("field-3");
+		cdao.updateAll(appid1, Arrays.asList(other));
+		cdao.update(appid1, read2);
+		assertEquals("field-2", ((Sysprop) cdao.read(appid1, s.getId())).getName());
+		cdao.delete(appid1, s);
+	}
+
+	@Test
+	public void testFieldSnapshotEviction() {
+		CassandraDAO cdao = (CassandraDAO) dao();
+		String appid = "test-snapshots";
+		String table = CassandraUtils.getTableNameForAppid(appid);
+		CassandraUtils.createTable(appid);
+		List<Sysprop> objects = new ArrayList<Sysprop>();
+		for (int i = 0; i < 1500; i++) {
+			Sysprop s = new Sysprop("snapshot-" + i);
+			s.addProperty("data", StringUtils.repeat('x', 1000));
+			objects.add(s);
+		}
+		cdao.createAll(appid, objects);
+		List<Sysprop> reads = new ArrayList<Sysprop>();
+		for (Sysprop s : objects) {
+			reads.add(cdao.read(appid, s.getId()));
+		}
+		// the snapshots of the objects read first were evicted, not all of them at once
+		assertTrue(CassandraDAO.getSnapshotBytes() <= 1024 * 1024);
+		Sysprop first = reads.get(0);
+		Sysprop last = reads.get(reads.size() - 1);
+		first.setName("changed");
+		last.setName("changed");
+		cdao.update(appid, first);
+		cdao.update(appid, last);
+		assertTrue(SESSION.getSession().execute("SELECT field_updates FROM " + table + " WHERE id = ?;", first.getId()).
+				one().getMap(0, String.class, String.class).containsKey("properties"));
+		assertFalse(SESSION.getSession().execute("SELECT field_updates FROM " + table + " WHERE id = ?;", last.getId()).
+				one().getMap(0, String.class, String.class).containsKey("properties"));
+		CassandraUtils.deleteTable(appid);
+	}
+
+	@Test
+	public void testReadChanges() throws InterruptedException {
+		CassandraDAO cdao = (CassandraDAO) dao();
+		String appid = "test-changes";
+		CassandraUtils.createTable(appid);
+		long start = System.currentTimeMillis();
+		List<Sysprop> objects = new ArrayList<Sysprop>();
+		for (int i = 0; i < 5; i++) {
+			objects.add(new Sysprop("change-" + i));
+		}
+		cdao.createAll(appid, objects);
+		Thread.sleep(5);
+		long since = System.currentTimeMillis();
+		Thread.sleep(5);
+		cdao.update(appid, objects.get(0));
+		cdao.delete(appid, objects.get(1));
+		// a failed write fails as a whole, without a change record
+		// (with counts and chunking enabled, the stored object is read and its old chunks are deleted first)
+		SESSION.failNext(3);
+		assertThrows(RuntimeException.class, () -> cdao.create(appid, new Sysprop("change-failed")));
+		assertNull(cdao.read(appid, "change-failed"));
+
+		// the latest changes are left for later, in case older ones are still being written
+		long lagged = System.currentTimeMillis() - 200;
+		for (Map<String, Object> change : cdao.readChanges(appid, start, new Pager(10))) {
+			assertTrue((Long) change.get("timestamp") <= lagged);
+		}
+		Thread.sleep(200);
+
+		// pages continue where the previous one ended
+		Pager pager = new Pager(2);
+		Set<String> ids = new HashSet<String>();
+		List<Map<String, Object>> page;
+		int total = 0;
+		do {
+			page = cdao.readChanges(appid, start, pager);
+			page.forEach(change -> ids.add(change.get("id") + ":" + change.get("op")));
+			total += page.size();
+		} while (!page.isEmpty());
+		assertEquals(7, total);
+		assertEquals(7, ids.size());
+		assertTrue(ids.contains("change-0:update"));
+		assertTrue(ids.contains("change-1:delete"));
+
+		List<Map<String, Object>> changes = cdao.readChanges(appid, since, new Pager(10));
+		assertEquals(2, changes.size());
+		assertEquals("update", changes.get(0).get("op"));
+		assertEquals("delete", changes.get(1).get("op"));
+		CassandraUtils.deleteTable(appid);
+	}
+
+	@Test
+	public void testPageBudget() {
+		CassandraDAO cdao = (CassandraDAO) dao();
+		String appid = "test-budget";
+		CassandraUtils.createTable(appid);
+		for (int i = 0; i < 25; i++) {
+			Sysprop s = new Sysprop("budget-" + i);
+			s.addProperty("data", StringUtils.repeat('x', 1000));
+			cdao.create(appid, s);
+		}
+		// each page has as many objects as requested, fetched in parts of about 4KB, and no object is repeated or skipped
+		Pager pager = new Pager(10);
+		Set<String> ids = new HashSet<String>();
+		List<Sysprop> page = cdao.readPage(appid, pager);
+		assertEquals(10, page.size());
+		page.forEach(s -> ids.add(s.getId()));
+		assertTrue(cdao.getFetchSize(appid, 10) < 10);
+		int requests = SESSION.getRequestCount();
+		page = cdao.readPage(appid, pager);
+		assertEquals(10, page.size());
+		assertTrue(SESSION.getRequestCount() - requests > 1);
+		page.forEach(s -> ids.add(s.getId()));
+		page = cdao.readPage(appid, pager);
+		assertEquals(5, page.size());
+		page.forEach(s -> ids.add(s.getId()));
+		assertTrue(cdao.readPage(appid, pager).isEmpty());
+		assertEquals(25, ids.size());
+		assertEquals(25, pager.getCount());
+		CassandraUtils.deleteTable(appid);
+	}
+
+	@Test
+	public void testPurge() throws IOException {
+		CassandraDAO cdao = (CassandraDAO) dao();
+		String appid = "test-purge";
+		CassandraUtils.createTable(appid);
+		long now = System.currentTimeMillis();
+		long old = now - TimeUnit.DAYS.toMillis(400);
+		List<Sysprop> objects = Arrays.asList(purgeable("purge-1", "purgeme", old), purgeable("purge-2", "purgeme", old),
+				purgeable("purge-3", "purgeme", now - TimeUnit.DAYS.toMillis(2)), purgeable("purge-4", "purgeme", now),
+				purgeable("purge-5", "keepme", old));
+		cdao.createAll(appid, objects);
+		// old objects are archived, the cold table is scanned too
+		assertEquals(3, CassandraTiering.archive(appid));
+		Path checkpoint = Files.createTempDirectory("para-purge").resolve("purge.checkpoint");
+		assertEquals(3, CassandraPurger.purge(appid, "purgeme", now - TimeUnit.DAYS.toMillis(1), checkpoint));
+		assertNull(cdao.readJson(appid, "purge-1"));
+		assertNull(cdao.readJson(appid, "purge-2"));
+		assertNull(cdao.readJson(appid, "purge-3"));
+		assertNotNull(cdao.readJson(appid, "purge-4"));
+		assertNotNull(cdao.readJson(appid, "purge-5"));
+		assertEquals(1, SESSION.size(CassandraUtils.getColdTableNameForAppid(appid)));
+		assertFalse(Files.exists(checkpoint));
+		assertTrue(CassandraPurger.getProgress(appid, "purgeme").isEmpty());
+		CassandraUtils.deleteTable(appid);
+	}
+
+	@Test
+	public void testDeleteStored() {
+		CassandraDAO cdao = (CassandraDAO) dao();
+		String appid = "test-delete-stored";
+		CassandraUtils.createTable(appid);
+		Sysprop s1 = new Sysprop("stored-1");
+		s1.setName("stored-name-1");
+		Sysprop s2 = new Sysprop("stored-2");
+		s2.setName("stored-name-2");
+		cdao.createAll(appid, Arrays.asList(s1, s2));
+		assertEquals(2, cdao.countObjects(appid, null));
+		List<Map<String, Object>> stored = new ArrayList<Map<String, Object>>();
+		stored.add(ParaObjectUtils.getAnnotatedFields(cdao.read(appid, s1.getId()), null));
+		stored.add(ParaObjectUtils.getAnnotatedFields(cdao.read(appid, s2.getId()), null));
+
+		// a failed delete is reported rather than thrown, and the object is still there
+		SESSION.failNext(1);
+		assertEquals(Arrays.asList(s1.getId()), cdao.deleteStored(appid, stored));
+		assertNotNull(cdao.read(appid, s1.getId()));
+		assertNull(cdao.read(appid, s2.getId()));
+		assertNull(cdao.readIdByField(appid, "name", "stored-name-2"));
+		assertEquals(1, cdao.countObjects(appid, null));
+		// deleting it again finishes the job
+		assertTrue(cdao.deleteStored(appid, stored.subList(0, 1)).isEmpty());
+		assertNull(cdao.read(appid, s1.getId()));
+		assertNull(cdao.readIdByField(appid, "name", "stored-name-1"));
+		assertEquals(0, cdao.countObjects(appid, null));
+		assertEquals(0, SESSION.size(CassandraUtils.getTableNameForAppid(appid)));
+		CassandraUtils.deleteTable(appid);
+	}
+
+	@Test
+	public void testPurgeCheckpoint() throws IOException {
+		CassandraDAO cdao = (CassandraDAO) dao();
+		String appid = "test-purge-resume";
+		CassandraUtils.createTable(appid);
+		long before = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1);
+		long old = before - TimeUnit.DAYS.toMillis(1);
+		cdao.createAll(appid, Arrays.asList(purgeable("resume-1", "purgeme", old), purgeable("resume-2", "purgeme", old)));
+		// every range is saved as done, as if the purge was interrupted right before it finished
+		Path checkpoint = Files.createTempDirectory("para-purge").resolve("purge.checkpoint");
+		List<String> lines = new ArrayList<String>();
+		lines.add("purgeme " + before + " 64"); // 64 is the default number of splits
+		for (int i = 0; i < CassandraUtils.getTokenRanges(64).size(); i++) {
+			lines.add(Integer.toString(i));
+		}
+		Files.write(checkpoint, lines);
+		assertEquals(0, CassandraPurger.purge(appid, "purgeme", before, checkpoint));
+		assertNotNull(cdao.readJson(appid, "resume-1"));
+		assertFalse(Files.exists(checkpoint));
+		// the checkpoint of a purge with a different time is ignored
+		lines.set(0, "purgeme " + (before - 1) + " 64");
+		Files.write(checkpoint, lines);
+		assertEquals(2, CassandraPurger.purge(appid, "purgeme", before, checkpoint));
+		assertNull(cdao.readJson(appid, "resume-1"));
+		assertNull(cdao.readJson(appid, "resume-2"));
+		CassandraUtils.deleteTable(appid);
+	}
+
+	@Test
+	public void testPurgeRateLimiter() {
+		CassandraPurger.RateLimiter limiter = new CassandraPurger.RateLimiter();
+		assertEquals(500, limiter.getRate());
+		// slow or failed batches halve the rate, fast ones increase it by 10%
+		limiter.update(Long.MAX_VALUE);
+		assertEquals(250, limiter.getRate());
+		limiter.update(0);
+		assertEquals(275, limiter.getRate());
+		for (int i = 0; i < 10; i++) {
+			limiter.update(Long.MAX_VALUE);
+		}
+		assertEquals(10, limiter.getRate());
+		long start = System.nanoTime();
+		for (int i = 0; i < 3; i++) {
+			limiter.acquire(1);
+		}
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 250);
+	}
+
+	private static Sysprop purgeable(String id, String type, long timestamp) {
+		Sysprop s = new Sysprop(id);
+		s.setType(type);
+		s.setTimestamp(timestamp);
+		return s;
+	}
+
+	private static boolean tableExists(String table) {
+		try {
+			SESSION.getSession().execute("SELECT * FROM " + table + ";");
+			return true;
+		} catch (IllegalStateException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,1247 @@
+/*
+ * Copyright 2013-2026 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.server.persistence;
+
+import com.datastax.oss.driver.api.core.CqlIdentifier;
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.DriverTimeoutException;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.ExecutionInfo;
+import com.datastax.oss.driver.api.core.cql.PagingState;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.ResultSet;
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.datastax.oss.driver.api.core.cql.SimpleStatement;
+import com.datastax.oss.driver.api.core.cql.Statement;
+import com.datastax.oss.driver.api.core.detach.AttachmentPoint;
+import com.datastax.oss.driver.api.core.metadata.Metadata;
+import com.datastax.oss.driver.internal.core.cql.DefaultPagingState;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory stand-in for a Cassandra session, for tests and benchmarks which don't need a real cluster.
+ * It understands the CQL issued by {@link CassandraDAO} and {@link CassandraUtils} - creating and dropping
+ * tables, inserts, updates (including counters and map appends), deletes, selects by key, by token range
+ * and by clustering range, batches and paging. Rows are kept in token order, like in Cassandra.
+ * Latency and failures can be injected, to test how the DAO behaves when the cluster is slow or unavailable.
+ * Use it with {@link CassandraUtils#setClient(String, CqlSession)}.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class InMemoryCqlSession {
+
+	private static final Object UNHANDLED = new Object();
+	private static final char SEP = '\u0000';
+	private static final UUID SCHEMA_VERSION = UUID.randomUUID();
+	private static final Pattern SELECT = Pattern.compile("(?i)SELECT (.+?) FROM (\\S+?)(?: WHERE (.+?))?" +
+			"(?: LIMIT (\\S+?))?(?: ALLOW FILTERING)?");
+	private static final Pattern INSERT = Pattern.compile("(?i)INSERT INTO (\\S+?) ?\\((.+?)\\) VALUES ?\\((.+?)\\)" +
+			"(?: USING .+)?");
+	private static final Pattern UPDATE = Pattern.compile("(?i)UPDATE (\\S+?)( USING .+?)? SET (.+?) WHERE (.+)");
+	private static final Pattern DELETE = Pattern.compile("(?i)DELETE FROM (\\S+?)( USING .+?)? WHERE (.+)");
+	private static final Pattern TOKEN = Pattern.compile("(?i)token\\((.+?)\\) ?(>=|<=|>|<|=) ?(\\S+)");
+	private static final Pattern TUPLE = Pattern.compile("\\((.+?)\\) ?(>=|<=|>|<|=) ?\\((.+?)\\)");
+	private static final Pattern IN = Pattern.compile("(?i)(\\w+) IN (.+)");
+	private static final Pattern COMPARE = Pattern.compile("(\\w+) ?(>=|<=|>|<|=) ?(.+)");
+	private static final Pattern TTL = Pattern.compile("(?i)default_time_to_live ?= ?(\\d+)");
+	private static final Pattern ASSIGN = Pattern.compile("(\\w+) ?= ?(?:(\\w+) ?([+-]) ?)?(.+)");
+
+	private final CqlSession session;
+	private final Map<String, Table> tables = new ConcurrentHashMap<String, Table>();
+	private final Set<String> keyspaces = ConcurrentHashMap.newKeySet();
+	private final Map<String, String> tableKeyspaces = new ConcurrentHashMap<String, String>();
+	private final Map<String, String> replication = new ConcurrentHashMap<String, String>();
+	private final Map<String, Query> queries = new ConcurrentHashMap<String, Query>();
+	private final Object writeLock = new Object();
+	private final AtomicInteger failNext = new AtomicInteger();
+	private final AtomicInteger failNextPrepare = new AtomicInteger();
+	private final AtomicInteger requests = new AtomicInteger();
+	private volatile String keyspace;
+	private volatile long latencyMs;
+	private volatile double failureRate;
+
+	public InMemoryCqlSession() {
+		this.session = proxy(CqlSession.class, this::handleSession);
+	}
+
+	/**
+	 * @return the session
+	 */
+	public CqlSession getSession() {
+		return session;
+	}
+
+	/**
+	 * Delays every request.
+	 * @param latencyMs the delay in milliseconds
+	 * @return this
+	 */
+	public InMemoryCqlSession withLatency(long latencyMs) {
+		this.latencyMs = Math.max(0, latencyMs);
+		return this;
+	}
+
+	/**
+	 * Fails a fraction of all requests with a {@link DriverTimeoutException}.
+	 * @param failureRate a number between 0 (no failures) and 1 (all requests fail)
+	 * @return this
+	 */
+	public InMemoryCqlSession withFailureRate(double failureRate) {
+		this.failureRate = failureRate;
+		return this;
+	}
+
+	/**
+	 * Fails the next requests with a {@link DriverTimeoutException}.
+	 * @param count the number of requests which fail
+	 */
+	public void failNext(int count) {
+		failNext.set(count);
+	}
+
+	/**
+	 * Fails the next requests to prepare a statement with a {@link DriverTimeoutException}.
+	 * @param count the number of requests which fail
+	 */
+	public void failNextPrepare(int count) {
+		failNextPrepare.set(count);
+	}
+
+	/**
+	 * @return the number of requests executed so far
+	 */
+	public int getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * @param table a table name
+	 * @return the number of rows in a table
+	 */
+	public int size(String table) {
+		Table t = tables.get(name(table));
+		return t == null ? 0 : t.rows.size();
+	}
+
+	/**
+	 * @param table a table name
+	 * @param column a column name
+	 * @return true if the table has the column
+	 */
+	public boolean hasColumn(String table, String column) {
+		Table t = tables.get(name(table));
+		return t != null && t.types.containsKey(column.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * @param table a table name
+	 * @return the keyspace the table was created in, or null if there is no such table
+	 */
+	public String keyspaceOf(String table) {
+		return tables.containsKey(name(table)) ? tableKeyspaces.get(name(table)) : null;
+	}
+
+	/**
+	 * @param table a table name
+	 * @return the options the table was created with, after "WITH", or null if there is no such table
+	 */
+	public String optionsOf(String table) {
+		Table t = tables.get(name(table));
+		return t == null ? null : t.options;
+	}
+
+	/**
+	 * @param table a table name
+	 * @param id the id of a row in a table with a single primary key column
+	 * @return the TTL in seconds the row was last written with, 0 if it doesn't expire, or -1 if there is no such row
+	 */
+	public int ttlOf(String table, String id) {
+		Table t = tables.get(name(table));
+		String key = t == null ? null : t.key(Map.of(t.partitionKey.get(0), id));
+		return key == null || !t.rows.containsKey(key) ? -1 : t.ttls.getOrDefault(key, 0);
+	}
+
+	/**
+	 * @param keyspace a keyspace name
+	 * @return the replication map the keyspace was created with, or null
+	 */
+	public String replicationOf(String keyspace) {
+		return replication.get(keyspace.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Deletes all tables and rows.
+	 */
+	public void clear() {
+		tables.clear();
+		tableKeyspaces.clear();
+		replication.clear();
+		keyspaces.clear();
+	}
+
+	/////////////////////////////////////////////
+	//				SESSION
+	/////////////////////////////////////////////
+
+	private Object handleSession(Object proxy, String method, Object[] args) {
+		switch (method) {
+			case "execute":
+				return execute(toStatement(args)).toResultSet();
+			case "executeAsync":
+				return executeAsync(toStatement(args));
+			case "prepare":
+			case "prepareAsync":
+				String query = args[0] instanceof SimpleStatement ? ((SimpleStatement) args[0]).getQuery() : (String) args[0];
+				if (failNextPrepare.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+					DriverTimeoutException e = new DriverTimeoutException("Injected failure");
+					if ("prepare".equals(method)) {
+						throw e;
+					}
+					return CompletableFuture.failedFuture(e);
+				}
+				PreparedStatement ps = prepare(query);
+				return "prepare".equals(method) ? ps : CompletableFuture.completedFuture(ps);
+			case "getKeyspace":
+				return Optional.ofNullable(keyspace).map(CqlIdentifier::fromCql);
+			case "getName":
+				return "in-memory";
+			case "checkSchemaAgreement":
+			case "isSchemaMetadataEnabled":
+				return true;
+			case "isClosed":
+				return false;
+			case "checkSchemaAgreementAsync":
+				return CompletableFuture.completedFuture(true);
+			case "getMetadata":
+				// a single node, without peers
+				return proxy(Metadata.class, (p, m, a) -> "getNodes".equals(m) ? Collections.emptyMap() : UNHANDLED);
+			case "closeAsync":
+			case "forceCloseAsync":
+			case "closeFuture":
+				return CompletableFuture.completedFuture(null);
+			case "close":
+				return null;
+			default:
+				return UNHANDLED;
+		}
+	}
+
+	private static Statement<?> toStatement(Object[] args) {
+		if (args[0] instanceof Statement) {
+			return (Statement<?>) args[0];
+		}
+		if (args.length > 1 && args[1] instanceof Object[]) {
+			return SimpleStatement.newInstance((String) args[0], (Object[]) args[1]);
+		}
+		return SimpleStatement.newInstance((String) args[0]);
+	}
+
+	private CompletableFuture<AsyncResultSet> executeAsync(Statement<?> statement) {
+		if (latencyMs <= 0) {
+			try {
+				return CompletableFuture.completedFuture(execute(statement).toAsyncResultSet());
+			} catch (RuntimeException e) {
+				return CompletableFuture.failedFuture(e);
+			}
+		}
+		return CompletableFuture.supplyAsync(() -> run(statement).toAsyncResultSet(),
+				CompletableFuture.delayedExecutor(latencyMs, TimeUnit.MILLISECONDS));
+	}
+
+	private Result execute(Statement<?> statement) {
+		if (latencyMs > 0) {
+			try {
+				Thread.sleep(latencyMs);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return run(statement);
+	}
+
+	private Result run(Statement<?> statement) {
+		requests.incrementAndGet();
+		if (failNext.getAndUpdate(n -> Math.max(0, n - 1)) > 0 ||
+				(failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate)) {
+			throw new DriverTimeoutException("Injected failure");
+		}
+		String query;
+		List<Object> values;
+		int pageSize = statement.getPageSize();
+		ByteBuffer pagingState = statement.getPagingState();
+		if (statement instanceof SimpleStatement) {
+			query = ((SimpleStatement) statement).getQuery();
+			values = ((SimpleStatement) statement).getPositionalValues();
+		} else if (statement instanceof BoundStatement && getHandler(statement) instanceof Bound) {
+			Bound bound = (Bound) getHandler(statement);
+			query = bound.query;
+			values = bound.values;
+		} else {
+			throw new UnsupportedOperationException("Unsupported statement " + statement);
+		}
+		Query q = queries.computeIfAbsent(query, this::parse);
+		List<Object> page = new ArrayList<Object>();
+		String next = execute(q, values == null ? Collections.emptyList() : values, pageSize,
+				pagingState == null ? null : StandardCharsets.UTF_8.decode(pagingState.duplicate()).toString(), page);
+		@SuppressWarnings("unchecked")
+		List<Row> rows = (List<Row>) (List<?>) page;
+		return new Result(statement, rows, next == null ? null : ByteBuffer.wrap(next.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private PreparedStatement prepare(String query) {
+		queries.computeIfAbsent(query, this::parse);
+		return proxy(PreparedStatement.class, (proxy, method, args) -> {
+			switch (method) {
+				case "bind":
+					Object[] values = args.length == 0 || args[0] == null ? new Object[0] : (Object[]) args[0];
+					return new Bound((PreparedStatement) proxy, query, Arrays.asList(values), 0, null).toStatement();
+				case "getQuery":
+					return query;
+				case "getId":
+				case "getResultMetadataId":
+					return ByteBuffer.wrap(query.getBytes(StandardCharsets.UTF_8));
+				default:
+					return UNHANDLED;
+			}
+		});
+	}
+
+	/////////////////////////////////////////////
+	//				QUERY EXECUTION
+	/////////////////////////////////////////////
+
+	private String execute(Query q, List<Object> values, int pageSize, String pagingState, List<Object> page) {
+		switch (q.kind) {
+			case "SELECT":
+				return select(q, values, pageSize, pagingState, page);
+			case "BATCH":
+				synchronized (writeLock) {
+					int offset = 0;
+					for (Query statement : q.statements) {
+						execute(statement, values.subList(offset, offset + statement.binds), 0, null, page);
+						offset += statement.binds;
+					}
+				}
+				return null;
+			case "INSERT":
+			case "UPDATE":
+				synchronized (writeLock) {
+					upsert(q, values);
+				}
+				return null;
+			case "DELETE":
+				synchronized (writeLock) {
+					Table table = getTable(q.table);
+					for (Map.Entry<String, Map<String, Object>> row : find(table, q.conditions, values, null)) {
+						table.rows.remove(row.getKey());
+						table.ttls.remove(row.getKey());
+					}
+				}
+				return null;
+			case "CREATE":
+				String ks = q.keyspace == null ? keyspace : q.keyspace;
+				if (ks != null && !keyspaces.contains(ks)) {
+					throw new IllegalStateException("keyspace " + ks + " does not exist");
+				}
+				if (tables.putIfAbsent(q.table, q.definition) == null && ks != null) {
+					tableKeyspaces.put(q.table, ks);
+				}
+				return null;
+			case "DROP":
+				tables.remove(q.table);
+				return null;
+			case "ALTER":
+				if (q.definition != null) {
+					getTable(q.table).types.putAll(q.definition.types);
+				}
+				return null;
+			case "KEYSPACE":
+				if (keyspaces.add(q.table) && q.options != null) {
+					replication.put(q.table, q.options);
+				}
+				return null;
+			case "USE":
+				keyspace = q.table;
+				keyspaces.add(q.table);
+				return null;
+			default:
+				throw new UnsupportedOperationException(q.kind);
+		}
+	}
+
+	private String select(Query q, List<Object> values, int pageSize, String pagingState, List<Object> page) {
+		Table table = q.table.startsWith("system") ? getSystemTable(q.table) : getTable(q.table);
+		int limit = q.limit == null ? Integer.MAX_VALUE : ((Number) q.limit.value(values)).intValue();
+		List<String> columns = q.columns.size() == 1 && "*".equals(q.columns.get(0)) ?
+				new ArrayList<String>(table.types.keySet()) : q.columns;
+		List<Map.Entry<String, Map<String, Object>>> rows = find(table, q.conditions, values, pagingState);
+		String next = null;
+		int count = 0;
+		for (Map.Entry<String, Map<String, Object>> row : rows) {
+			if (count >= limit) {
+				break;
+			}
+			if (pageSize > 0 && count >= pageSize) {
+				next = rows.get(count - 1).getKey();
+				break;
+			}
+			Object[] rowValues = new Object[columns.size()];
+			for (int i = 0; i < rowValues.length; i++) {
+				rowValues[i] = row.getValue().get(columns.get(i));
+			}
+			page.add(row(columns, rowValues));
+			count++;
+		}
+		return next;
+	}
+
+	private void upsert(Query q, List<Object> values) {
+		Table table = getTable(q.table);
+		Map<String, Object> key = new LinkedHashMap<String, Object>();
+		if ("INSERT".equals(q.kind)) {
+			for (int i = 0; i < q.columns.size(); i++) {
+				key.put(q.columns.get(i), q.terms.get(i).value(values));
+			}
+		} else {
+			for (Condition c : q.conditions) {
+				key.put(c.columns.get(0), c.terms.get(0).value(values));
+			}
+		}
+		String rowKey = table.key(key);
+		Map<String, Object> row = table.rows.get(rowKey);
+		row = row == null ? new LinkedHashMap<String, Object>() : new LinkedHashMap<String, Object>(row);
+		for (String column : table.primaryKey()) {
+			row.put(column, key.get(column));
+		}
+		if ("INSERT".equals(q.kind)) {
+			for (int i = 0; i < q.columns.size(); i++) {
+				put(row, q.columns.get(i), q.terms.get(i).value(values));
+			}
+		} else {
+			for (Assignment a : q.assignments) {
+				Object value = a.term.value(values);
+				Object current = row.get(a.column);
+				if (a.operator == null) {
+					put(row, a.column, value);
+				} else if ("counter".equals(table.types.get(a.column))) {
+					long delta = value == null ? 0 : ((Number) value).longValue();
+					row.put(a.column, (current == null ? 0L : ((Number) current).longValue()) + ("-".equals(a.operator) ? -delta : delta));
+				} else if (value instanceof Map) {
+					@SuppressWarnings("unchecked")
+					Map<Object, Object> map = current == null ? new LinkedHashMap<Object, Object>() :
+							new LinkedHashMap<Object, Object>((Map<Object, Object>) current);
+					if ("-".equals(a.operator)) {
+						map.keySet().removeAll(((Map<?, ?>) value).keySet());
+					} else {
+						map.putAll((Map<?, ?>) value);
+					}
+					put(row, a.column, map);
+				} else if (value instanceof Collection) {
+					List<Object> list = current == null ? new ArrayList<Object>() : new ArrayList<Object>((Collection<?>) current);
+					if ("-".equals(a.operator)) {
+						list.removeAll((Collection<?>) value);
+					} else {
+						list.addAll((Collection<?>) value);
+					}
+					put(row, a.column, list);
+				}
+			}
+		}
+		table.rows.put(rowKey, row);
+		// rows never expire here, the TTL they would expire after is only recorded
+		if (table.defaultTtl > 0) {
+			table.ttls.put(rowKey, table.defaultTtl);
+		}
+	}
+
+	private static void put(Map<String, Object> row, String column, Object value) {
+		if (value == null || (value instanceof Map && ((Map<?, ?>) value).isEmpty())) {
+			row.remove(column);
+		} else {
+			row.put(column, value);
+		}
+	}
+
+	/**
+	 * Returns the rows which match all conditions, in token order. If all partition key columns are
+	 * restricted, only that partition is read, otherwise the whole table is scanned.
+	 */
+	private List<Map.Entry<String, Map<String, Object>>> find(Table table, List<Condition> conditions,
+			List<Object> values, String after) {
+		Map<String, Object> partition = new LinkedHashMap<String, Object>();
+		for (Condition c : conditions) {
+			if ("=".equals(c.operator) && c.columns.size() == 1 && table.partitionKey.contains(c.columns.get(0))) {
+				partition.put(c.columns.get(0), c.terms.get(0).value(values));
+			}
+		}
+		NavigableMap<String, Map<String, Object>> rows = table.rows;
+		if (partition.size() == table.partitionKey.size()) {
+			String prefix = table.partitionPrefix(partition);
+			rows = rows.subMap(prefix, true, prefix + Character.MAX_VALUE, true);
+		}
+		if (after != null) {
+			rows = rows.tailMap(after, false);
+		}
+		List<Map.Entry<String, Map<String, Object>>> results = new ArrayList<Map.Entry<String, Map<String, Object>>>();
+		for (Map.Entry<String, Map<String, Object>> row : rows.entrySet()) {
+			boolean matches = true;
+			for (Condition c : conditions) {
+				if (!c.matches(row.getKey(), row.getValue(), values)) {
+					matches = false;
+					break;
+				}
+			}
+			if (matches) {
+				results.add(row);
+			}
+		}
+		return results;
+	}
+
+	private Table getTable(String name) {
+		Table table = tables.get(name);
+		if (table == null) {
+			throw new IllegalStateException("unconfigured table " + name);
+		}
+		return table;
+	}
+
+	private Table getSystemTable(String name) {
+		Table table = new Table("keyspace_name");
+		if (name.endsWith(".keyspaces")) {
+			for (String ks : keyspaces) {
+				table.insert(Map.of("keyspace_name", ks));
+			}
+		} else if (name.endsWith(".tables")) {
+			table.types.put("table_name", "text");
+			table.clustering.add("table_name");
+			for (String ks : keyspaces) {
+				for (String t : tables.keySet()) {
+					table.insert(Map.of("keyspace_name", ks, "table_name", t));
+				}
+			}
+		} else if (name.endsWith(".local")) {
+			Table local = new Table("key");
+			local.types.put("schema_version", "uuid");
+			local.insert(Map.of("key", "local", "schema_version", SCHEMA_VERSION));
+			return local;
+		} else if (name.endsWith(".peers")) {
+			Table peers = new Table("peer");
+			peers.types.put("host_id", "uuid");
+			peers.types.put("schema_version", "uuid");
+			return peers;
+		} else if (name.endsWith(".columns")) {
+			table.types.put("table_name", "text");
+			table.types.put("column_name", "text");
+			table.clustering.add("table_name");
+			table.clustering.add("column_name");
+			for (String ks : keyspaces) {
+				for (Map.Entry<String, Table> t : tables.entrySet()) {
+					for (String column : t.getValue().types.keySet()) {
+						table.insert(Map.of("keyspace_name", ks, "table_name", t.getKey(), "column_name", column));
+					}
+				}
+			}
+		}
+		return table;
+	}
+
+	/////////////////////////////////////////////
+	//				CQL PARSING
+	/////////////////////////////////////////////
+
+	private Query parse(String cql) {
+		String q = cql.trim().replaceAll("\\s+", " ");
+		while (q.endsWith(";")) {
+			q = q.substring(0, q.length() - 1).trim();
+		}
+		String upper = q.toUpperCase(Locale.ROOT);
+		Query query = new Query();
+		AtomicInteger binds = new AtomicInteger();
+		Matcher m;
+		if (upper.startsWith("BEGIN ")) {
+			query.kind = "BATCH";
+			String body = q.substring(upper.indexOf("BATCH") + 5, upper.lastIndexOf("APPLY BATCH"));
+			for (String statement : body.split(";")) {
+				if (!statement.isBlank()) {
+					Query sub = parse(statement);
+					query.statements.add(sub);
+					binds.addAndGet(sub.binds);
+				}
+			}
+		} else if (upper.startsWith("USE ")) {
+			query.kind = "USE";
+			query.table = name(q.substring(4));
+		} else if (upper.startsWith("CREATE KEYSPACE")) {
+			query.kind = "KEYSPACE";
+			String[] parts = q.replaceFirst("(?i)CREATE KEYSPACE (IF NOT EXISTS )?", "").split("(?i) WITH replication ?= ?", 2);
+			query.table = name(parts[0]);
+			query.options = parts.length > 1 ? parts[1].replaceFirst("(?i) AND durable_writes.*", "").trim() : null;
+		} else if (upper.startsWith("CREATE TABLE")) {
+			query.kind = "CREATE";
+			String rest = q.replaceFirst("(?i)CREATE TABLE (IF NOT EXISTS )?", "");
+			int open = rest.indexOf('(');
+			query.table = name(rest.substring(0, open));
+			query.keyspace = keyspace(rest.substring(0, open));
+			int close = closingParenthesis(rest, open);
+			query.definition = parseTable(rest.substring(open + 1, close));
+			query.definition.options = rest.substring(close + 1).replaceFirst("(?i)^ ?WITH ", "").trim();
+			Matcher ttl = TTL.matcher(query.definition.options);
+			query.definition.defaultTtl = ttl.find() ? Integer.parseInt(ttl.group(1)) : 0;
+		} else if (upper.startsWith("DROP TABLE")) {
+			query.kind = "DROP";
+			query.table = name(q.replaceFirst("(?i)DROP TABLE (IF EXISTS )?", ""));
+		} else if (upper.startsWith("ALTER TABLE")) {
+			query.kind = "ALTER";
+			String[] parts = q.replaceFirst("(?i)ALTER TABLE ", "").split(" ", 4);
+			query.table = name(parts[0]);
+			if (parts.length > 3 && "ADD".equalsIgnoreCase(parts[1])) {
+				query.definition = new Table();
+				query.definition.types.put(parts[2].toLowerCase(Locale.ROOT), parts[3].toLowerCase(Locale.ROOT));
+			}
+		} else if ((m = SELECT.matcher(q)).matches()) {
+			query.kind = "SELECT";
+			query.columns = columns(m.group(1));
+			query.table = name(m.group(2));
+			query.conditions = conditions(m.group(3), binds);
+			query.limit = m.group(4) == null ? null : term(m.group(4), binds);
+		} else if ((m = INSERT.matcher(q)).matches()) {
+			query.kind = "INSERT";
+			query.table = name(m.group(1));
+			query.columns = columns(m.group(2));
+			for (String term : m.group(3).split(",")) {
+				query.terms.add(term(term, binds));
+			}
+		} else if ((m = UPDATE.matcher(q)).matches()) {
+			query.kind = "UPDATE";
+			query.table = name(m.group(1));
+			if (m.group(2) != null) {
+				binds.addAndGet(count(m.group(2), '?'));
+			}
+			for (String assignment : split(m.group(3))) {
+				Matcher a = ASSIGN.matcher(assignment.trim());
+				if (!a.matches()) {
+					throw new UnsupportedOperationException("Unsupported assignment " + assignment);
+				}
+				query.assignments.add(new Assignment(a.group(1).toLowerCase(Locale.ROOT), a.group(3), term(a.group(4), binds)));
+			}
+			query.conditions = conditions(m.group(4), binds);
+		} else if ((m = DELETE.matcher(q)).matches()) {
+			query.kind = "DELETE";
+			query.table = name(m.group(1));
+			if (m.group(2) != null) {
+				// timestamps are ignored, like in UPDATE ... USING
+				binds.addAndGet(count(m.group(2), '?'));
+			}
+			query.conditions = conditions(m.group(3), binds);
+		} else {
+			throw new UnsupportedOperationException("Unsupported query " + cql);
+		}
+		query.binds = binds.get();
+		return query;
+	}
+
+	private static Table parseTable(String body) {
+		Table table = new Table();
+		for (String def : split(body)) {
+			String d = def.trim();
+			if (d.toUpperCase(Locale.ROOT).startsWith("PRIMARY KEY")) {
+				String keys = d.substring(d.indexOf('(') + 1, d.lastIndexOf(')')).trim();
+				if (keys.startsWith("(")) {
+					int close = keys.indexOf(')');
+					table.partitionKey.addAll(columns(keys.substring(1, close)));
+					keys = keys.substring(close + 1).replaceFirst("^ ?, ?", "");
+					table.clustering.addAll(keys.isBlank() ? Collections.emptyList() : columns(keys));
+				} else {
+					List<String> columns = columns(keys);
+					table.partitionKey.add(columns.get(0));
+					table.clustering.addAll(columns.subList(1, columns.size()));
+				}
+			} else {
+				String[] parts = d.split(" ", 2);
+				String column = parts[0].toLowerCase(Locale.ROOT);
+				String type = parts[1].toLowerCase(Locale.ROOT);
+				if (type.endsWith(" primary key")) {
+					type = type.substring(0, type.length() - " primary key".length());
+					table.partitionKey.add(column);
+				}
+				table.types.put(column, type.trim());
+			}
+		}
+		return table;
+	}
+
+	private static List<Condition> conditions(String where, AtomicInteger binds) {
+		List<Condition> conditions = new ArrayList<Condition>();
+		if (where == null) {
+			return conditions;
+		}
+		for (String condition : where.split("(?i) AND ")) {
+			String c = condition.trim();
+			Matcher m;
+			if ((m = TOKEN.matcher(c)).matches()) {
+				conditions.add(new Condition("token", columns(m.group(1)), m.group(2), List.of(term(m.group(3), binds))));
+			} else if ((m = TUPLE.matcher(c)).matches()) {
+				List<Term> terms = new ArrayList<Term>();
+				for (String term : m.group(3).split(",")) {
+					terms.add(term(term, binds));
+				}
+				conditions.add(new Condition("tuple", columns(m.group(1)), m.group(2), terms));
+			} else if ((m = IN.matcher(c)).matches()) {
+				String in = m.group(2).trim();
+				List<Term> terms = new ArrayList<Term>();
+				for (String term : in.startsWith("(") ? in.substring(1, in.length() - 1).split(",") : new String[]{in}) {
+					terms.add(term(term, binds));
+				}
+				conditions.add(new Condition("in", columns(m.group(1)), "IN", terms));
+			} else if ((m = COMPARE.matcher(c)).matches()) {
+				conditions.add(new Condition("compare", columns(m.group(1)), m.group(2), List.of(term(m.group(3), binds))));
+			} else {
+				throw new UnsupportedOperationException("Unsupported condition " + c);
+			}
+		}
+		return conditions;
+	}
+
+	private static Term term(String term, AtomicInteger binds) {
+		String t = term.trim();
+		if ("?".equals(t)) {
+			return new Term(binds.getAndIncrement(), null);
+		} else if ("NULL".equalsIgnoreCase(t)) {
+			return new Term(-1, null);
+		} else if (t.startsWith("'")) {
+			return new Term(-1, t.substring(1, t.length() - 1).replace("''", "'"));
+		}
+		return new Term(-1, Long.valueOf(t));
+	}
+
+	private static List<String> columns(String columns) {
+		List<String> list = new ArrayList<String>();
+		for (String column : columns.split(",")) {
+			list.add(column.trim().toLowerCase(Locale.ROOT));
+		}
+		return list;
+	}
+
+	/**
+	 * Splits on commas which aren't inside parentheses or angle brackets.
+	 */
+	private static List<String> split(String s) {
+		List<String> parts = new ArrayList<String>();
+		int depth = 0;
+		int start = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '(' || c == '<' || c == '{') {
+				depth++;
+			} else if (c == ')' || c == '>' || c == '}') {
+				depth--;
+			} else if (c == ',' && depth == 0) {
+				parts.add(s.substring(start, i));
+				start = i + 1;
+			}
+		}
+		parts.add(s.substring(start));
+		return parts;
+	}
+
+	private static int closingParenthesis(String s, int open) {
+		int depth = 0;
+		for (int i = open; i < s.length(); i++) {
+			if (s.charAt(i) == '(') {
+				depth++;
+			} else if (s.charAt(i) == ')' && --depth == 0) {
+				return i;
+			}
+		}
+		throw new UnsupportedOperationException("Unbalanced parentheses in " + s);
+	}
+
+	private static int count(String s, char c) {
+		return (int) s.chars().filter(ch -> ch == c).count();
+	}
+
+	/**
+	 * Table names without the keyspace, in lower case.
+	 */
+	private static String name(String name) {
+		String n = name.trim().toLowerCase(Locale.ROOT).replace("\"", "");
+		return n.startsWith("system") ? n : n.substring(n.indexOf('.') + 1);
+	}
+
+	/**
+	 * The keyspace of a qualified table name, in lower case, or null.
+	 */
+	private static String keyspace(String name) {
+		String n = name.trim().toLowerCase(Locale.ROOT).replace("\"", "");
+		return n.indexOf('.') > 0 ? n.substring(0, n.indexOf('.')) : null;
+	}
+
+	/////////////////////////////////////////////
+	//				ROWS AND KEYS
+	/////////////////////////////////////////////
+
+	/**
+	 * Rows are stored under a key which sorts like Cassandra sorts rows - by token, then by clustering columns.
+	 */
+	private static String keyPart(Object value) {
+		if (value instanceof Number) {
+			return String.format("%016x", ((Number) value).longValue() ^ Long.MIN_VALUE);
+		}
+		return String.valueOf(value);
+	}
+
+	private static long token(String key) {
+		return Long.parseUnsignedLong(key.substring(0, 16), 16) ^ Long.MIN_VALUE;
+	}
+
+	private static int compare(Object a, Object b) {
+		if (a == null || b == null) {
+			return a == null ? (b == null ? 0 : -1) : 1;
+		}
+		if (a instanceof Number && b instanceof Number) {
+			return Long.compare(((Number) a).longValue(), ((Number) b).longValue());
+		}
+		return String.valueOf(a).compareTo(String.valueOf(b));
+	}
+
+	private static boolean matches(int comparison, String operator) {
+		switch (operator) {
+			case "=":
+				return comparison == 0;
+			case ">":
+				return comparison > 0;
+			case ">=":
+				return comparison >= 0;
+			case "<":
+				return comparison < 0;
+			case "<=":
+				return comparison <= 0;
+			default:
+				throw new UnsupportedOperationException(operator);
+		}
+	}
+
+	private static Row row(List<String> columns, Object[] values) {
+		return proxy(Row.class, (proxy, method, args) -> {
+			if (args.length > 0 && (method.startsWith("get") || "isNull".equals(method))) {
+				int i = args[0] instanceof Integer ? (Integer) args[0] : columns.indexOf(String.valueOf(args[0]).toLowerCase(Locale.ROOT));
+				if (i < 0) {
+					throw new IllegalArgumentException(args[0] + " is not a column in this row");
+				}
+				Object value = values[i];
+				switch (method) {
+					case "isNull":
+						return value == null;
+					case "getString":
+						return value == null ? null : String.valueOf(value);
+					case "getBytesUnsafe":
+						return value == null ? null : ByteBuffer.wrap(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+					case "getLong":
+						return value == null ? 0L : ((Number) value).longValue();
+					case "getInt":
+						return value == null ? 0 : ((Number) value).intValue();
+					case "getBoolean":
+						return value != null && (Boolean) value;
+					case "getMap":
+						return value == null ? new LinkedHashMap<Object, Object>() : new LinkedHashMap<Object, Object>((Map<?, ?>) value);
+					case "getList":
+						return value == null ? new ArrayList<Object>() : new ArrayList<Object>((Collection<?>) value);
+					case "getObject":
+					case "get":
+						return value;
+					default:
+						return UNHANDLED;
+				}
+			}
+			return "size".equals(method) ? values.length : UNHANDLED;
+		});
+	}
+
+	/////////////////////////////////////////////
+	//				PROXIES
+	/////////////////////////////////////////////
+
+	/**
+	 * Handles a method call on a proxy, or returns {@code UNHANDLED} to fall back to the
+	 * interface's default method or to a default value.
+	 */
+	private interface Handler {
+		Object handle(Object proxy, String method, Object[] args);
+	}
+
+	private static final class ProxyHandler implements InvocationHandler {
+		private final Handler handler;
+
+		ProxyHandler(Handler handler) {
+			this.handler = handler;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			Object[] a = args == null ? new Object[0] : args;
+			if ("equals".equals(method.getName()) && a.length == 1) {
+				return proxy == a[0];
+			} else if ("hashCode".equals(method.getName()) && a.length == 0) {
+				return System.identityHashCode(proxy);
+			} else if ("toString".equals(method.getName()) && a.length == 0) {
+				return handler.toString();
+			}
+			Object result = handler.handle(proxy, method.getName(), a);
+			if (result != UNHANDLED) {
+				return result;
+			} else if (method.isDefault()) {
+				return InvocationHandler.invokeDefault(proxy, method, args);
+			}
+			Class<?> type = method.getReturnType();
+			// null, or the default value of a primitive type
+			return type.isPrimitive() && type != void.class ? Array.get(Array.newInstance(type, 1), 0) : null;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<T> type, Handler handler) {
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new ProxyHandler(handler));
+	}
+
+	private static Handler getHandler(Object proxy) {
+		if (Proxy.isProxyClass(proxy.getClass()) && Proxy.getInvocationHandler(proxy) instanceof ProxyHandler) {
+			return ((ProxyHandler) Proxy.getInvocationHandler(proxy)).handler;
+		}
+		return null;
+	}
+
+	/**
+	 * A bound statement - immutable, setters return a copy.
+	 */
+	private static final class Bound implements Handler {
+		private final PreparedStatement ps;
+		private final String query;
+		private final List<Object> values;
+		private final int pageSize;
+		private final ByteBuffer pagingState;
+
+		Bound(PreparedStatement ps, String query, List<Object> values, int pageSize, ByteBuffer pagingState) {
+			this.ps = ps;
+			this.query = query;
+			this.values = values;
+			this.pageSize = pageSize;
+			this.pagingState = pagingState;
+		}
+
+		BoundStatement toStatement() {
+			return proxy(BoundStatement.class, this);
+		}
+
+		@Override
+		public Object handle(Object proxy, String method, Object[] args) {
+			switch (method) {
+				case "getPreparedStatement":
+					return ps;
+				case "getPageSize":
+					return pageSize;
+				case "getPagingState":
+					return pagingState;
+				case "setPageSize":
+					return new Bound(ps, query, values, (Integer) args[0], pagingState).toStatement();
+				case "setPagingState":
+					ByteBuffer state = args[0] instanceof PagingState ? ((PagingState) args[0]).getRawPagingState() : (ByteBuffer) args[0];
+					return new Bound(ps, query, values, pageSize, state).toStatement();
+				case "size":
+					return values.size();
+				default:
+					// other settings like consistency levels and timeouts don't matter here
+					return method.startsWith("set") ? proxy : UNHANDLED;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return query + " " + values;
+		}
+	}
+
+	/**
+	 * The rows returned by a request, as a sync or async result set.
+	 */
+	private final class Result {
+		private final Statement<?> statement;
+		private final List<Row> rows;
+		private final ByteBuffer pagingState;
+		private int position;
+
+		Result(Statement<?> statement, List<Row> rows, ByteBuffer pagingState) {
+			this.statement = statement;
+			this.rows = rows;
+			this.pagingState = pagingState;
+		}
+
+		ResultSet toResultSet() {
+			// a sync result set fetches all pages when iterated, like the driver does
+			Iterator<Row> iterator = new Iterator<Row>() {
+				private Result current = Result.this;
+
+				@Override
+				public boolean hasNext() {
+					while (current.position >= current.rows.size() && current.pagingState != null) {
+						current = run(current.statement.setPagingState(current.pagingState));
+					}
+					return current.position < current.rows.size();
+				}
+
+				@Override
+				public Row next() {
+					return hasNext() ? current.rows.get(current.position++) : null;
+				}
+			};
+			return proxy(ResultSet.class, (proxy, method, args) -> {
+				switch (method) {
+					case "iterator":
+						return iterator;
+					case "one":
+						return iterator.hasNext() ? iterator.next() : null;
+					case "getAvailableWithoutFetching":
+						return rows.size() - position;
+					case "isFullyFetched":
+						return pagingState == null;
+					case "wasApplied":
+						return true;
+					case "getExecutionInfo":
+						return getExecutionInfo();
+					case "getExecutionInfos":
+						return List.of(getExecutionInfo());
+					default:
+						return UNHANDLED;
+				}
+			});
+		}
+
+		AsyncResultSet toAsyncResultSet() {
+			return proxy(AsyncResultSet.class, (proxy, method, args) -> {
+				switch (method) {
+					case "currentPage":
+						return rows.subList(position, rows.size());
+					case "remaining":
+						return rows.size() - position;
+					case "one":
+						return position < rows.size() ? rows.get(position++) : null;
+					case "hasMorePages":
+						return pagingState != null;
+					case "fetchNextPage":
+						if (pagingState == null) {
+							throw new IllegalStateException("No next page.");
+						}
+						return executeAsync(statement.setPagingState(pagingState));
+					case "wasApplied":
+						return true;
+					case "getExecutionInfo":
+						return getExecutionInfo();
+					default:
+						return UNHANDLED;
+				}
+			});
+		}
+
+		private ExecutionInfo getExecutionInfo() {
+			return proxy(ExecutionInfo.class, (proxy, method, args) -> {
+				switch (method) {
+					case "getPagingState":
+						return pagingState == null ? null : pagingState.duplicate();
+					case "getSafePagingState":
+						return pagingState == null ? null :
+								new DefaultPagingState(pagingState.duplicate(), statement, AttachmentPoint.NONE);
+					case "getRequest":
+					case "getStatement":
+						return statement;
+					case "getWarnings":
+					case "getErrors":
+						return Collections.emptyList();
+					case "getIncomingPayload":
+						return Collections.emptyMap();
+					case "isSchemaInAgreement":
+						return true;
+					default:
+						return UNHANDLED;
+				}
+			});
+		}
+	}
+
+	/////////////////////////////////////////////
+	//				SCHEMA AND QUERIES
+	/////////////////////////////////////////////
+
+	private static final class Table {
+		private final Map<String, String> types = new LinkedHashMap<String, String>();
+		private final List<String> partitionKey = new ArrayList<String>();
+		private final List<String> clustering = new ArrayList<String>();
+		private final ConcurrentSkipListMap<String, Map<String, Object>> rows = new ConcurrentSkipListMap<String, Map<String, Object>>();
+		private final Map<String, Integer> ttls = new ConcurrentHashMap<String, Integer>();
+		private String options = "";
+		private int defaultTtl;
+
+		Table() {
+		}
+
+		Table(String partitionKey) {
+			this.types.put(partitionKey, "text");
+			this.partitionKey.add(partitionKey);
+		}
+
+		List<String> primaryKey() {
+			List<String> columns = new ArrayList<String>(partitionKey);
+			columns.addAll(clustering);
+			return columns;
+		}
+
+		void insert(Map<String, Object> row) {
+			rows.put(key(row), new LinkedHashMap<String, Object>(row));
+		}
+
+		String partitionPrefix(Map<String, Object> values) {
+			StringBuilder partition = new StringBuilder();
+			for (String column : partitionKey) {
+				partition.append(keyPart(values.get(column))).append(SEP);
+			}
+			// FNV-1a, good enough to spread partitions over the ring
+			long hash = 0xcbf29ce484222325L;
+			for (int i = 0; i < partition.length(); i++) {
+				hash = (hash ^ partition.charAt(i)) * 0x100000001b3L;
+			}
+			return String.format("%016x", hash ^ Long.MIN_VALUE) + SEP + partition;
+		}
+
+		String key(Map<String, Object> values) {
+			StringBuilder key = new StringBuilder(partitionPrefix(values));
+			for (String column : clustering) {
+				if (values.get(column) == null) {
+					throw new IllegalArgumentException("Missing value for clustering column " + column);
+				}
+				key.append(keyPart(values.get(column))).append(SEP);
+			}
+			return key.toString();
+		}
+	}
+
+	private static final class Query {
+		private String kind;
+		private String table;
+		private String keyspace;
+		private String options;
+		private List<String> columns = new ArrayList<String>();
+		private final List<Term> terms = new ArrayList<Term>();
+		private final List<Assignment> assignments = new ArrayList<Assignment>();
+		private List<Condition> conditions = new ArrayList<Condition>();
+		private final List<Query> statements = new ArrayList<Query>();
+		private Term limit;
+		private Table definition;
+		private int binds;
+	}
+
+	private static final class Term {
+		private final int index;
+		private final Object literal;
+
+		Term(int index, Object literal) {
+			this.index = index;
+			this.literal = literal;
+		}
+
+		Object value(List<Object> values) {
+			return index < 0 ? literal : values.get(index);
+		}
+	}
+
+	private static final class Assignment {
+		private final String column;
+		private final String operator;
+		private final Term term;
+
+		Assignment(String column, String operator, Term term) {
+			this.column = column;
+			this.operator = operator;
+			this.term = term;
+		}
+	}
+
+	private static final class Condition {
+		private final String kind;
+		private final List<String> columns;
+		private final String operator;
+		private final List<Term> terms;
+
+		Condition(String kind, List<String> columns, String operator, List<Term> terms) {
+			this.kind = kind;
+			this.columns = columns;
+			this.operator = operator;
+			this.terms = terms;
+		}
+
+		boolean matches(String key, Map<String, Object> row, List<Object> values) {
+			switch (kind) {
+				case "token":
+					return InMemoryCqlSession.matches(compare(token(key), terms.get(0).value(values)), operator);
+				case "in":
+					Object actual = row.get(columns.get(0));
+					for (Term term : terms) {
+						Object value = term.value(values);
+						for (Object v : value instanceof Collection ? (Collection<?>) value : Collections.singletonList(value)) {
+							if (compare(actual, v) == 0) {
+								return true;
+							}
+						}
+					}
+					return false;
+				case "tuple":
+					int comparison = 0;
+					for (int i = 0; i < columns.size() && comparison == 0; i++) {
+						comparison = compare(row.get(columns.get(i)), terms.get(i).value(values));
+					}
+					return InMemoryCqlSession.matches(comparison, operator);
+				default:
+					return InMemoryCqlSession.matches(compare(row.get(columns.get(0)), terms.get(0).value(values)), operator);
+			}
+		}
+	}
+}